@@ -13,6 +13,9 @@ public class Config {
 
     // The following macros are for a thread safe pooled client.
     private static final PoolingHttpClientConnectionManager CM = new PoolingHttpClientConnectionManager();
+    static {
+        CM.setDefaultMaxPerRoute(20); // Allow pages to be fetched in parallel from the one service
+    }
     private static final CloseableHttpClient CLOSEABLE_HTTP_CLIENT = HttpClientBuilder.create().setConnectionManager(CM).build();
     private static final ApacheHttpClient4Engine ENGINE = new ApacheHttpClient4Engine(CLOSEABLE_HTTP_CLIENT);
     public final static Client POOLED_CLIENT = new ResteasyClientBuilder().httpEngine(ENGINE).build();
@@ -8,14 +8,30 @@ import javax.ws.rs.ProcessingException;
 import javax.ws.rs.ServiceUnavailableException;
 import javax.ws.rs.client.Client;
 import javax.ws.rs.client.Entity;
+import javax.ws.rs.client.Invocation;
+import javax.ws.rs.client.InvocationCallback;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.GenericType;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import java.awt.*;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+import java.util.stream.Stream;
 
 /**
  * Class implementing functionality outlined by the ConcertService interface. All methods
@@ -28,71 +44,63 @@ public class DefaultService implements ConcertService {
 
     // Constants:
     protected static final int RETRIEVE_WINDOW_SIZE = 10;
+    protected static final int RETRIEVE_PARALLELISM = 4; // Windows in flight at once
+    protected static final int MAX_RESUME_ATTEMPTS = 3; // Range requests per interrupted image download
+    protected static final int MAX_VALIDATED_RESPONSES = 100; // Tagged responses kept for revalidation, images included
 
     // Fields
     protected Client _client;
     protected String _authorizationToken;
     protected String _username;
     protected String _password;
+    protected Map<String, Validated<?>> _validated; // Last tagged responses by URL, revalidated on reuse
+    protected PageFetcher _pageFetcher; // Retrieves paged collections
 
 
     public DefaultService() {
 
-        _client = Config.POOLED_CLIENT;
+        this(RETRIEVE_WINDOW_SIZE, RETRIEVE_PARALLELISM);
 
     }
 
+    /**
+     * @param windowSize number of results requested at a time from paged collections.
+     * @param parallelism number of such requests in flight at once.
+     */
+    public DefaultService(int windowSize, int parallelism) {
 
-    @Override
-    public Set<ConcertDTO> getConcerts() throws ServiceException {
-
-        // Use path parameters to get ranges of results
-        int resultListLength = RETRIEVE_WINDOW_SIZE;
-        String url = Config.LOCAL_SERVER_ADDRESS + String.format("/concerts?start=%d&size=%d", 0, RETRIEVE_WINDOW_SIZE);
+        _client = Config.POOLED_CLIENT;
+        _validated = Collections.synchronizedMap(new LinkedHashMap<String, Validated<?>>(16, 0.75f, true) { // Access order
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Validated<?>> eldest) {
+                return size() > MAX_VALIDATED_RESPONSES; // Dropping the least recently used only costs a full download
+            }
+        });
+        _pageFetcher = new PageFetcher(windowSize, parallelism);
 
-        Set<ConcertDTO> concerts = new HashSet<>();
+    }
 
-        while (resultListLength == RETRIEVE_WINDOW_SIZE) { // While still receiving full window size sets
-            try {
-                Response res = _client.target(url).request().get();
 
-                Set<ConcertDTO> resultList = res.readEntity(new GenericType<Set<ConcertDTO>>() {});
-                resultListLength = resultList.size(); // Set as current size of result list, used in while predicate
-                url = res.getLocation().toString();
+    @Override
+    public Set<ConcertDTO> getConcerts() throws ServiceException {
 
-                concerts.addAll(resultList);
-            } catch (ServiceUnavailableException | ProcessingException e) {
-                throw new ServiceException(Messages.SERVICE_COMMUNICATION_ERROR);
-            }
-        }
+        // Request several windows of results at once, in rounds, until a window comes back short
+        List<ConcertDTO> concerts = _pageFetcher.fetchAll(start -> getValidatedAsync(windowUrl("/concerts", start),
+                MediaType.APPLICATION_XML, request -> request, (Response res) -> res.readEntity(new GenericType<Set<ConcertDTO>>() {}))
+                .thenApply(page -> page._entity));
 
-        return concerts;
+        return new HashSet<>(concerts);
     }
 
     @Override
     public Set<PerformerDTO> getPerformers() throws ServiceException {
 
-        // Use path parameters to get ranges of results
-        int resultListLength = RETRIEVE_WINDOW_SIZE;
-        String url = Config.LOCAL_SERVER_ADDRESS + String.format("/performers?start=%d&size=%d", 0, RETRIEVE_WINDOW_SIZE);
+        // Request several windows of results at once, in rounds, until a window comes back short
+        List<PerformerDTO> performers = _pageFetcher.fetchAll(start -> getValidatedAsync(windowUrl("/performers", start),
+                MediaType.APPLICATION_XML, request -> request, (Response res) -> res.readEntity(new GenericType<Set<PerformerDTO>>() {}))
+                .thenApply(page -> page._entity));
 
-        Set<PerformerDTO> performers = new HashSet<>();
-
-        while (resultListLength == RETRIEVE_WINDOW_SIZE) { // While still receiving full window size sets
-            try {
-                Response res = _client.target(url).request().get();
-
-                Set<PerformerDTO> resultList = res.readEntity(new GenericType<Set<PerformerDTO>>() {});
-                resultListLength = resultList.size(); // Set as current size of result list, used in while predicate
-                url = res.getLocation().toString();
-
-                performers.addAll(resultList);
-            } catch (ServiceUnavailableException | ProcessingException e) {
-                throw new ServiceException(Messages.SERVICE_COMMUNICATION_ERROR);
-            }
-        }
-
-        return performers;
+        return new HashSet<>(performers);
     }
 
     @Override
@@ -148,18 +156,29 @@ public class DefaultService implements ConcertService {
 
     @Override
     public Image getImageForPerformer(PerformerDTO performer) throws ServiceException {
+        return getImageForPerformer(performer, 0);
+    }
 
-        try {
-            Response res = _client.target(Config.LOCAL_SERVER_ADDRESS + "/images/" + performer.getImageName()).request()
-                    .accept("image/png").get();
+    /**
+     * Downloads a performer's image scaled down to fit within a size, e.g. for an avatar. The service renders and
+     * caches the smaller image, so only its bytes are transferred and decoded.
+     * @param performer
+     * @param size longest side of the image in pixels, or 0 for the full size image.
+     */
+    public Image getImageForPerformer(PerformerDTO performer, int size) throws ServiceException {
 
-            switch(res.getStatus()) {
-                case 404: throw new ServiceException(res.readEntity(String.class));
-                case 503: throw new ServiceException(res.readEntity(String.class));
-            }
+        String url = Config.LOCAL_SERVER_ADDRESS + "/images/" + performer.getImageName() + (size == 0 ? "" : "?size=" + size);
+        try {
+            Validated<byte[]> image = getValidated(url, "image/png", res -> {
+                switch(res.getStatus()) {
+                    case 400: throw new ServiceException(res.readEntity(String.class));
+                    case 404: throw new ServiceException(res.readEntity(String.class));
+                    case 503: throw new ServiceException(res.readEntity(String.class));
+                }
+                return readImage(url, res);
+            });
 
-            byte[] byteArray = res.readEntity(byte[].class);
-            return ImageIO.read(new ByteArrayInputStream(byteArray));
+            return ImageIO.read(new ByteArrayInputStream(image._entity));
         } catch (IOException e) { // Couldn't read file
             throw new ServiceException(Messages.SERVICE_COMMUNICATION_ERROR);
         } finally {
@@ -238,35 +257,231 @@ public class DefaultService implements ConcertService {
     @Override
     public Set<BookingDTO> getBookings() throws ServiceException {
 
-        // Use path parameters to get ranges of results
-        int resultListLength = RETRIEVE_WINDOW_SIZE;
-        String url = Config.LOCAL_SERVER_ADDRESS + String.format("/users/book?start=%d&size=%d", 0, RETRIEVE_WINDOW_SIZE);
+        // Request several windows of results at once, in rounds, until a window comes back short
+        List<BookingDTO> bookings = _pageFetcher.fetchAll(start -> getValidatedAsync(windowUrl("/users/book", start),
+                MediaType.APPLICATION_XML,
+                request -> request.header("Authorization", _authorizationToken), // Insert authorization token
+                this::readBookings)
+                .thenApply(page -> page._entity));
+
+        return new HashSet<>(bookings);
+    }
+
+    /**
+     * Returns every concert as a lazy stream in id order. Pages of concerts are requested one at a time as the
+     * stream is consumed, so early concerts can be processed before later ones have been requested, and
+     * short-circuiting the stream saves the remaining requests.
+     */
+    public Stream<ConcertDTO> streamConcerts() throws ServiceException {
+        return pages("/concerts", request -> request, (Response res) -> res.readEntity(new GenericType<List<ConcertDTO>>() {})).stream();
+    }
+
+    /**
+     * Returns every performer as a lazy stream in id order, requesting pages as the stream is consumed.
+     */
+    public Stream<PerformerDTO> streamPerformers() throws ServiceException {
+        return pages("/performers", request -> request, (Response res) -> res.readEntity(new GenericType<List<PerformerDTO>>() {})).stream();
+    }
+
+    /**
+     * Returns the user's bookings as a lazy stream, requesting pages in booking order as the stream is consumed.
+     */
+    public Stream<BookingDTO> streamBookings() throws ServiceException {
+        return pages("/users/book",
+                request -> request.header("Authorization", _authorizationToken), // Insert authorization token
+                (Response res) -> new ArrayList<>(readBookings(res))).stream();
+    }
+
+
+    // Protected methods
+
+
+    /**
+     * Gets a resource, sending the entity tag of the copy held from a previous request, if any. When the service
+     * answers 304 the held copy is returned without transferring or unmarshalling the resource again.
+     * @param url
+     * @param mediaType
+     * @param reader reads the entity of a fresh response, throwing ServiceException for error statuses.
+     */
+    protected <T> Validated<T> getValidated(String url, String mediaType, Function<Response, T> reader) {
+        return getValidated(url, mediaType, request -> request, reader);
+    }
+
+    /**
+     * Form of getValidated() for requests that need more than the validator.
+     * @param decorator adds anything else the request needs, e.g. an authorization header.
+     */
+    protected <T> Validated<T> getValidated(String url, String mediaType, UnaryOperator<Invocation.Builder> decorator,
+                                            Function<Response, T> reader) {
+        Validated<T> held = held(url);
+        Response res;
+        try {
+            res = decorator.apply(validatedRequest(url, mediaType, held)).get();
+        } catch (ServiceUnavailableException | ProcessingException e) {
+            throw new ServiceException(Messages.SERVICE_COMMUNICATION_ERROR);
+        }
+        return readValidated(url, held, res, reader);
+    }
 
-        Set<BookingDTO> bookings = new HashSet<>();
+    /**
+     * Asynchronous form of getValidated(). The reader runs on the client's callback thread.
+     * @param url
+     * @param mediaType
+     * @param decorator adds anything else the request needs, e.g. an authorization header.
+     * @param reader reads the entity of a fresh response, throwing ServiceException for error statuses.
+     */
+    protected <T> CompletableFuture<Validated<T>> getValidatedAsync(String url, String mediaType,
+                                                                    UnaryOperator<Invocation.Builder> decorator,
+                                                                    Function<Response, T> reader) {
+        CompletableFuture<Validated<T>> result = new CompletableFuture<>();
+        Validated<T> held = held(url);
 
-        while (resultListLength == RETRIEVE_WINDOW_SIZE) { // While still receiving full window size sets
+        try {
+            decorator.apply(validatedRequest(url, mediaType, held)).async().get(new InvocationCallback<Response>() {
+                @Override
+                public void completed(Response res) {
+                    try {
+                        result.complete(readValidated(url, held, res, reader));
+                    } catch (RuntimeException e) {
+                        result.completeExceptionally(e);
+                    }
+                }
+
+                @Override
+                public void failed(Throwable throwable) {
+                    result.completeExceptionally(throwable);
+                }
+            });
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the address of the window of results starting at an offset of a paged collection.
+     */
+    protected String windowUrl(String path, int start) {
+        return Config.LOCAL_SERVER_ADDRESS + String.format("%s?start=%d&size=%d", path, start, _pageFetcher.getWindowSize());
+    }
+
+
+    // Private methods
+
+
+    private <T> PagedIterator<T> pages(String path, UnaryOperator<Invocation.Builder> decorator, Function<Response, List<T>> reader) {
+        // Follow the cursor in each page's location, as pages are requested one after another anyway
+        String firstUrl = Config.LOCAL_SERVER_ADDRESS + String.format("%s?cursor=&size=%d", path, _pageFetcher.getWindowSize());
+        return new PagedIterator<>(firstUrl, _pageFetcher.getWindowSize(),
+                url -> getValidated(url, MediaType.APPLICATION_XML, decorator, reader));
+    }
+
+    private Set<BookingDTO> readBookings(Response res) {
+        switch (res.getStatus()) {
+            case 401: throw new ServiceException(res.readEntity(String.class));
+            case 403: throw new ServiceException(res.readEntity(String.class));
+        }
+        return res.readEntity(new GenericType<Set<BookingDTO>>() {});
+    }
+
+    // Reads an image, resuming from the bytes already received with a range request if the download is cut off
+    private byte[] readImage(String url, Response res) {
+        EntityTag tag = res.getEntityTag();
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        try {
+            copy(res.readEntity(InputStream.class), received);
+            return received.toByteArray();
+        } catch (IOException | ProcessingException e) {
+            // Cut off part way, resume below from what was received
+        }
+
+        for (int attempt = 0; tag != null && !tag.isWeak() && attempt < MAX_RESUME_ATTEMPTS; attempt++) {
+            Response rest = null;
             try {
-                Response res = _client
+                rest = _client
                         .target(url)
                         .request()
-                        .header("Authorization", _authorizationToken) // Insert authorization token
+                        .accept("image/png")
+                        .header("Range", "bytes=" + received.size() + "-")
+                        .header("If-Range", "\"" + tag.getValue() + "\"") // Only resume the version already begun
                         .get();
-
-                switch (res.getStatus()) {
-                    case 401: throw new ServiceException(res.readEntity(String.class));
-                    case 403: throw new ServiceException(res.readEntity(String.class));
+                if (rest.getStatus() == Response.Status.OK.getStatusCode()) { // Image changed, start again
+                    received.reset();
+                } else if (rest.getStatus() != Response.Status.PARTIAL_CONTENT.getStatusCode()) {
+                    break;
+                }
+                copy(rest.readEntity(InputStream.class), received);
+                return received.toByteArray();
+            } catch (IOException | ProcessingException e) {
+                // Cut off again, resume from the bytes received so far
+            } finally {
+                if (rest != null) {
+                    rest.close();
                 }
+            }
+        }
+        throw new ServiceException(Messages.SERVICE_COMMUNICATION_ERROR);
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        try (InputStream source = in) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = source.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> Validated<T> held(String url) {
+        return (Validated<T>) _validated.get(url);
+    }
+
+    private Invocation.Builder validatedRequest(String url, String mediaType, Validated<?> held) {
+        Invocation.Builder request = _client.target(url).request().accept(mediaType);
+        if (held != null) {
+            request.header(HttpHeaders.IF_NONE_MATCH, held._tag);
+        }
+        return request;
+    }
 
-                Set<BookingDTO> resultList = res.readEntity(new GenericType<Set<BookingDTO>>() {});
-                resultListLength = resultList.size(); // Set as current size of result list, used in while predicate
-                url = res.getLocation().toString();
+    private <T> Validated<T> readValidated(String url, Validated<T> held, Response res, Function<Response, T> reader) {
+        if (held != null && res.getStatus() == Response.Status.NOT_MODIFIED.getStatusCode()) {
+            res.close(); // Nothing to read, release the connection
+            return held;
+        }
 
-                bookings.addAll(resultList);
-            } catch (ServiceUnavailableException | ProcessingException e) {
-                throw new ServiceException((Messages.SERVICE_COMMUNICATION_ERROR));
+        try {
+            T entity = reader.apply(res);
+            Validated<T> fresh = new Validated<>(res.getEntityTag(), entity, res.getLocation() == null ? null : res.getLocation().toString());
+            if (fresh._tag != null) {
+                _validated.put(url, fresh);
+            } else {
+                _validated.remove(url);
             }
+            return fresh;
+        } catch (ServiceUnavailableException | ProcessingException e) {
+            throw new ServiceException(Messages.SERVICE_COMMUNICATION_ERROR);
+        } finally {
+            res.close();
         }
+    }
+
+
+    /**
+     * A response entity together with the validator and next location it was served with.
+     */
+    protected static class Validated<T> {
 
-        return bookings;
+        protected final EntityTag _tag;
+        protected final T _entity;
+        protected final String _location;
+
+        protected Validated(EntityTag tag, T entity, String location) {
+            _tag = tag;
+            _entity = entity;
+            _location = location;
+        }
     }
 }
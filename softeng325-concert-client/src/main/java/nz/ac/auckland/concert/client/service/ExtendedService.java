@@ -12,6 +12,15 @@ import javax.ws.rs.client.*;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.NewCookie;
 import javax.ws.rs.core.Response;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.InputStream;
+import java.util.function.Consumer;
 
 /**
  * This class contains all additional / optional functionality described by the assignment brief. It
@@ -103,6 +112,22 @@ public class ExtendedService extends DefaultService {
     }
 
 
+    /**
+     * Retrieves every concert in a single request, handing each concert to the consumer as soon as it has been read
+     * rather than after the whole response has arrived.
+     */
+    public void exportConcerts(Consumer<ConcertDTO> consumer) {
+        readExport(Config.LOCAL_SERVER_ADDRESS + "/concerts/export", ConcertDTO.class, "concert", consumer);
+    }
+
+    /**
+     * Retrieves every performer in a single request, handing each performer to the consumer as soon as it has been
+     * read rather than after the whole response has arrived.
+     */
+    public void exportPerformers(Consumer<PerformerDTO> consumer) {
+        readExport(Config.LOCAL_SERVER_ADDRESS + "/performers/export", PerformerDTO.class, "performer", consumer);
+    }
+
     public void subscribeToNewPerformers(Subscription subscription) {
         WebTarget target = _client.target(Config.LOCAL_SERVER_ADDRESS + "/performers/getNotifications");
 
@@ -208,4 +233,85 @@ public class ExtendedService extends DefaultService {
         });
     }
 
+    /**
+     * Follows notifications of new performers over a single event stream, rather than one long-poll per
+     * notification. Each notification is handed to the subscription as it arrives.
+     * @return the stream, which runs until it is closed.
+     */
+    public NewsStream streamNewPerformers(Subscription subscription) {
+        return openNewsStream("/performers/notifications", subscription);
+    }
+
+    /**
+     * Follows notifications of new concerts over a single event stream.
+     * @return the stream, which runs until it is closed.
+     */
+    public NewsStream streamNewConcerts(Subscription subscription) {
+        return openNewsStream("/concerts/notifications", subscription);
+    }
+
+    /**
+     * Follows notifications of new images over a single event stream.
+     * @return the stream, which runs until it is closed.
+     */
+    public NewsStream streamNewImages(Subscription subscription) {
+        return openNewsStream("/images/notifications", subscription);
+    }
+
+    /**
+     * Follows notifications of new images for a performer over a single event stream.
+     * @return the stream, which runs until it is closed.
+     */
+    public NewsStream streamNewImagesForPerformer(PerformerDTO performerDTO, Subscription subscription) {
+        return openNewsStream("/images/notifications/" + performerDTO.getId(), subscription);
+    }
+
+
+    // Protected methods
+
+
+    protected NewsStream openNewsStream(String path, Subscription subscription) {
+        NewsStream stream = new NewsStream(_client, Config.LOCAL_SERVER_ADDRESS + path, _authorizationToken, subscription);
+        stream.start();
+        return stream;
+    }
+
+
+    /**
+     * Reads an export response element by element, unmarshalling each element with the given name from the
+     * response stream as it arrives.
+     */
+    protected <T> void readExport(String url, Class<T> type, String element, Consumer<T> consumer) {
+        Response res = null;
+        XMLStreamReader reader = null;
+        try {
+            res = _client.target(url).request().accept(MediaType.APPLICATION_XML).get();
+            if (res.getStatus() != Response.Status.OK.getStatusCode()) {
+                throw new ServiceException(Messages.SERVICE_COMMUNICATION_ERROR);
+            }
+
+            Unmarshaller unmarshaller = JAXBContext.newInstance(type).createUnmarshaller();
+            reader = XMLInputFactory.newInstance().createXMLStreamReader(res.readEntity(InputStream.class));
+            while (reader.hasNext()) {
+                if (reader.getEventType() == XMLStreamConstants.START_ELEMENT && reader.getLocalName().equals(element)) {
+                    consumer.accept(unmarshaller.unmarshal(reader, type).getValue()); // Leaves the reader after the element
+                } else {
+                    reader.next();
+                }
+            }
+        } catch (ServiceUnavailableException | ProcessingException | JAXBException | XMLStreamException e) {
+            throw new ServiceException(Messages.SERVICE_COMMUNICATION_ERROR);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (XMLStreamException e) {
+                    // Nothing more to read
+                }
+            }
+            if (res != null) {
+                res.close();
+            }
+        }
+    }
 }
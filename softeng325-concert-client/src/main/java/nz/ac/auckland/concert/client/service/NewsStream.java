@@ -0,0 +1,163 @@
+package nz.ac.auckland.concert.client.service;
+
+import nz.ac.auckland.concert.client.clientApp.Subscription;
+
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.Invocation;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
+/**
+ * Follows a server-sent event stream of news on a background thread, handing every notification to a Subscription
+ * as it arrives. When the connection drops the stream is reopened with the id of the last event received, so the
+ * service replays whatever was published in between. When the service is too busy to open a stream the connection is
+ * retried after the delay it asks for. The stream runs until it is closed or the service refuses it.
+ */
+public class NewsStream implements Closeable {
+
+    private static final String MEDIA_TYPE = "text/event-stream";
+
+    private final Client _client;
+    private final String _url;
+    private final String _authorizationToken;
+    private final Subscription _subscription;
+    private final Thread _thread;
+
+    private volatile boolean _closed = false;
+    private volatile Response _response; // Currently open, closed to interrupt a blocked read
+    private String _lastEventId; // Only used by _thread
+    private long _retryMillis = 1000; // Reconnection delay, may be changed by the service
+
+    public NewsStream(Client client, String url, String authorizationToken, Subscription subscription) {
+        _client = client;
+        _url = url;
+        _authorizationToken = authorizationToken;
+        _subscription = subscription;
+        _thread = new Thread(this::run, "news-stream");
+        _thread.setDaemon(true);
+    }
+
+    public void start() {
+        _thread.start();
+    }
+
+    @Override
+    public void close() {
+        _closed = true;
+        Response response = _response;
+        if (response != null) {
+            response.close();
+        }
+        _thread.interrupt();
+    }
+
+    public boolean isClosed() {
+        return _closed;
+    }
+
+
+    // Private methods
+
+
+    private void run() {
+        while (!_closed) {
+            _response = null;
+            long retryAfter = _retryMillis;
+            try {
+                Invocation.Builder request = _client
+                        .target(_url)
+                        .request()
+                        .header("Authorization", _authorizationToken) // Insert authorisation token
+                        .accept(MEDIA_TYPE);
+                if (_lastEventId != null) { // Resume where the last connection left off
+                    request.header("Last-Event-ID", _lastEventId);
+                }
+
+                _response = request.get();
+                if (_response.getStatus() == Response.Status.SERVICE_UNAVAILABLE.getStatusCode()) { // Busy, try again later
+                    retryAfter = retryAfter(_response);
+                } else if (_response.getStatus() != Response.Status.OK.getStatusCode()) { // Refused, e.g. unauthenticated
+                    _response.close();
+                    _closed = true;
+                    return;
+                } else {
+                    read(_response.readEntity(InputStream.class));
+                }
+            } catch (IOException | ProcessingException e) {
+                // Dropped, reconnect below
+            } finally {
+                if (_response != null) {
+                    _response.close();
+                }
+            }
+
+            try {
+                Thread.sleep(retryAfter);
+            } catch (InterruptedException e) {
+                return; // Closed
+            }
+        }
+    }
+
+    // Returns the delay a busy service asked for, or the usual reconnection delay if it named none
+    private long retryAfter(Response response) {
+        String seconds = response.getHeaderString(HttpHeaders.RETRY_AFTER);
+        try {
+            return seconds == null ? _retryMillis : Long.parseLong(seconds.trim()) * 1000;
+        } catch (NumberFormatException e) { // An HTTP date, which the service doesn't send
+            return _retryMillis;
+        }
+    }
+
+    // Reads events until the stream ends, dispatching each one at the blank line that ends it
+    private void read(InputStream in) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            StringBuilder data = null;
+            String id = null;
+            String line;
+            while (!_closed && (line = reader.readLine()) != null) {
+                if (line.isEmpty()) { // End of event
+                    if (data != null) {
+                        if (id != null) {
+                            _lastEventId = id;
+                        }
+                        _subscription.updateSubscription(Collections.singletonList(data.toString()));
+                    }
+                    data = null;
+                    id = null;
+                    continue;
+                }
+                if (line.startsWith(":")) { // Comment, e.g. a keep-alive
+                    continue;
+                }
+
+                int colon = line.indexOf(':');
+                String field = colon < 0 ? line : line.substring(0, colon);
+                String value = colon < 0 ? "" : line.substring(line.startsWith(" ", colon + 1) ? colon + 2 : colon + 1);
+                switch (field) {
+                    case "data":
+                        data = data == null ? new StringBuilder(value) : data.append('\n').append(value);
+                        break;
+                    case "id":
+                        id = value;
+                        break;
+                    case "retry":
+                        try {
+                            _retryMillis = Long.parseLong(value);
+                        } catch (NumberFormatException e) {
+                            // Keep the current delay
+                        }
+                        break;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package nz.ac.auckland.concert.client.service;
+
+import nz.ac.auckland.concert.common.message.Messages;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.IntFunction;
+
+/**
+ * Retrieves every item of a paged collection by requesting several windows at once. Windows are requested in rounds
+ * of up to the configured parallelism, and their results are merged in window order. Retrieval stops at the first
+ * window that comes back short, and any later windows of that round are discarded.
+ */
+public class PageFetcher {
+
+    private final int _windowSize;
+    private final int _parallelism;
+
+    /**
+     * @param windowSize number of items requested per window.
+     * @param parallelism number of windows in flight at once.
+     */
+    public PageFetcher(int windowSize, int parallelism) {
+        if (windowSize <= 0 || parallelism <= 0) {
+            throw new IllegalArgumentException("Window size and parallelism must be positive");
+        }
+        _windowSize = windowSize;
+        _parallelism = parallelism;
+    }
+
+    /**
+     * Retrieves all items.
+     * @param window starts the request for the window beginning at the given offset, of getWindowSize() items.
+     * @return all items, in the order the windows were served.
+     */
+    public <T> List<T> fetchAll(IntFunction<CompletableFuture<? extends Collection<T>>> window) throws ServiceException {
+        List<T> items = new ArrayList<>();
+
+        for (int start = 0; ; start += _windowSize * _parallelism) {
+            List<CompletableFuture<? extends Collection<T>>> round = new ArrayList<>(_parallelism);
+            for (int i = 0; i < _parallelism; i++) { // Every window of the round is in flight before any is read
+                round.add(window.apply(start + i * _windowSize));
+            }
+
+            for (int i = 0; i < round.size(); i++) {
+                Collection<T> page = await(round.get(i));
+                items.addAll(page);
+                if (page.size() < _windowSize) { // Reached the end, later windows can only be empty
+                    round.subList(i + 1, round.size()).forEach(pending -> pending.cancel(false));
+                    return items;
+                }
+            }
+        }
+    }
+
+    public int getWindowSize() {
+        return _windowSize;
+    }
+
+    public int getParallelism() {
+        return _parallelism;
+    }
+
+
+    // Private methods
+
+
+    private static <T> Collection<T> await(CompletableFuture<? extends Collection<T>> page) {
+        try {
+            return page.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof ServiceException) { // Already describes the failure
+                throw (ServiceException) e.getCause();
+            }
+            throw new ServiceException(Messages.SERVICE_COMMUNICATION_ERROR);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ServiceException(Messages.SERVICE_COMMUNICATION_ERROR);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package nz.ac.auckland.concert.client.service;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Iterator over a paged collection that requests each page only when the items already received have been consumed.
+ * Pages are followed through the next page URI the service returns with every page, and iteration ends after the
+ * first page that is shorter than the window size.
+ */
+public class PagedIterator<T> implements Iterator<T> {
+
+    private final Function<String, DefaultService.Validated<? extends Collection<T>>> _fetch;
+    private final int _windowSize;
+
+    private String _nextUrl;
+    private Iterator<T> _page = Collections.emptyIterator();
+
+    /**
+     * @param firstUrl address of the first page.
+     * @param windowSize number of items the service returns in a full page.
+     * @param fetch requests the page at an address, returning its items and the address of the following page.
+     */
+    public PagedIterator(String firstUrl, int windowSize, Function<String, DefaultService.Validated<? extends Collection<T>>> fetch) {
+        _nextUrl = firstUrl;
+        _windowSize = windowSize;
+        _fetch = fetch;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!_page.hasNext() && _nextUrl != null) { // Skips over empty pages
+            DefaultService.Validated<? extends Collection<T>> page = _fetch.apply(_nextUrl);
+            _page = Collections.<T>unmodifiableCollection(page._entity).iterator();
+            _nextUrl = page._entity.size() < _windowSize ? null : page._location; // A short page is the last
+        }
+        return _page.hasNext();
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return _page.next();
+    }
+
+    /**
+     * Returns a sequential stream over the remaining items. Pages are only requested as the stream is consumed, so a
+     * short-circuiting operation such as findFirst() or limit() stops further requests.
+     */
+    public Stream<T> stream() {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+}
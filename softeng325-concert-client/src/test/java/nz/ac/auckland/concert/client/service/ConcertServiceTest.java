@@ -18,7 +18,16 @@ import javax.ws.rs.client.Client;
 import javax.ws.rs.client.ClientBuilder;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.*;
 
@@ -283,6 +292,167 @@ public class ConcertServiceTest {
 		}	
 	}
 	
+	@Test
+	public void testSeatIndexRoundTrip() {
+		int numberOfSeats = 0;
+		for(PriceBand band : PriceBand.values()) {
+			for(SeatDTO seat : TheatreLayout.getSeatsForPriceBand(band)) {
+				int index = TheatreLayout.getSeatIndex(seat);
+				assertTrue(index >= 0 && index < TheatreLayout.SEAT_INDEX_COUNT);
+				assertSame(seat, TheatreLayout.getSeat(index));
+				assertSame(seat, TheatreLayout.getSeat(seat.getRow(), seat.getNumber().intValue()));
+				assertEquals(band, TheatreLayout.getPriceBandForRow(seat.getRow()));
+				numberOfSeats++;
+			}
+		}
+
+		// Every seat at the venue is in exactly one band, and numbers past the end of a row name no seat.
+		int seatsInRows = 0;
+		for(SeatRow row : SeatRow.values()) {
+			seatsInRows += TheatreLayout.getNumberOfSeatsForRow(row);
+			assertNull(TheatreLayout.getSeat(row, TheatreLayout.getNumberOfSeatsForRow(row) + 1));
+		}
+		assertEquals(seatsInRows, numberOfSeats);
+		assertNull(TheatreLayout.getSeat(-1));
+		assertNull(TheatreLayout.getSeat(TheatreLayout.SEAT_INDEX_COUNT));
+	}
+
+	@Test
+	public void testMakeReservationOfAdjacentSeats() {
+		try {
+			final int numberOfSeatsToBook = 4;
+
+			UserDTO userDTO = new UserDTO("Bulldog", "123", "Churchill", "Winston");
+			_service.createUser(userDTO);
+
+			LocalDateTime dateTime = LocalDateTime.of(2017, 2, 24, 17, 00);
+			ReservationRequestDTO request = new ReservationRequestDTO(numberOfSeatsToBook, PriceBand.PriceBandC, 1L, dateTime);
+			ReservationDTO reservation = _service.reserveSeats(request);
+
+			// Check that the seats share a row and are numbered one after another.
+			Set<SeatDTO> reservedSeats = reservation.getSeats();
+			assertEquals(numberOfSeatsToBook, reservedSeats.size());
+			SeatRow row = reservedSeats.iterator().next().getRow();
+			List<Integer> numbers = new ArrayList<>();
+			for(SeatDTO seat : reservedSeats) {
+				assertEquals(row, seat.getRow());
+				numbers.add(seat.getNumber().intValue());
+			}
+			Collections.sort(numbers);
+			for(int i = 1; i < numbers.size(); i++) {
+				assertEquals(numbers.get(i - 1) + 1, (int) numbers.get(i));
+			}
+		} catch(ServiceException e) {
+			fail();
+		}
+	}
+
+	@Test
+	public void testMakeConcurrentReservationsWithoutSharingSeats() throws Exception {
+		final int numberOfUsers = 8;
+		final int numberOfSeatsToBook = 10;
+
+		// Each user holds one reservation at a time, so every request comes from its own user.
+		List<ConcertService> services = new ArrayList<>();
+		for(int i = 0; i < numberOfUsers; i++) {
+			ConcertService service = new DefaultService();
+			service.createUser(new UserDTO("Bulldog" + i, "123", "Churchill", "Winston"));
+			services.add(service);
+		}
+
+		// Request seats in the same band of the same performance all at once.
+		LocalDateTime dateTime = LocalDateTime.of(2017, 2, 24, 17, 00);
+		List<SeatDTO> reservedSeats = Collections.synchronizedList(new ArrayList<>());
+		CountDownLatch start = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(numberOfUsers);
+		List<Future<Void>> results = new ArrayList<>();
+		for(ConcertService service : services) {
+			results.add(executor.submit(() -> {
+				start.await();
+				try {
+					ReservationRequestDTO request = new ReservationRequestDTO(numberOfSeatsToBook, PriceBand.PriceBandB, 1L, dateTime);
+					reservedSeats.addAll(service.reserveSeats(request).getSeats());
+				} catch(ServiceException e) {
+					assertEquals(Messages.INSUFFICIENT_SEATS_AVAILABLE_FOR_RESERVATION, e.getMessage());
+				}
+				return null;
+			}));
+		}
+		start.countDown();
+		for(Future<Void> result : results) {
+			result.get(30, TimeUnit.SECONDS); // Rethrows any failed assertion
+		}
+		executor.shutdown();
+
+		// Check that no seat was reserved twice.
+		assertFalse(reservedSeats.isEmpty());
+		assertEquals(reservedSeats.size(), new HashSet<>(reservedSeats).size());
+		for(SeatDTO seat : reservedSeats) {
+			assertTrue(TheatreLayout.getRowsForPriceBand(PriceBand.PriceBandB).contains(seat.getRow()));
+		}
+	}
+
+	@Test
+	public void testMakeConcurrentReservationsForOnePerformanceWithoutAborting() throws Exception {
+		final int numberOfUsers = 8;
+		final int numberOfSeatsToBook = 2;
+
+		List<ConcertService> services = new ArrayList<>();
+		for(int i = 0; i < numberOfUsers; i++) {
+			ConcertService service = new DefaultService();
+			service.createUser(new UserDTO("Bulldog" + i, "123", "Churchill", "Winston"));
+			services.add(service);
+		}
+
+		// There are seats enough for everyone, so requests for the same performance must queue rather than fail.
+		LocalDateTime dateTime = LocalDateTime.of(2017, 2, 24, 17, 00);
+		CountDownLatch start = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(numberOfUsers);
+		List<Future<ReservationDTO>> results = new ArrayList<>();
+		for(ConcertService service : services) {
+			results.add(executor.submit(() -> {
+				start.await();
+				return service.reserveSeats(new ReservationRequestDTO(numberOfSeatsToBook, PriceBand.PriceBandC, 1L, dateTime));
+			}));
+		}
+		start.countDown();
+		for(Future<ReservationDTO> result : results) {
+			assertEquals(numberOfSeatsToBook, result.get(30, TimeUnit.SECONDS).getSeats().size()); // Rethrows any ServiceException
+		}
+		executor.shutdown();
+	}
+
+	@Test
+	public void testMakeReservationOfSeatsFromLapsedReservation() {
+		try {
+			UserDTO userDTO = new UserDTO("Bulldog", "123", "Churchill", "Winston");
+			_service.createUser(userDTO);
+
+			Set<SeatRow> rowsOfStandardSeats = TheatreLayout.getRowsForPriceBand(PriceBand.PriceBandB);
+			int totalNumberOfStandardSeats = 0;
+			for(SeatRow row : rowsOfStandardSeats) {
+				totalNumberOfStandardSeats += TheatreLayout.getNumberOfSeatsForRow(row);
+			}
+
+			// Hold every seat in the band, then let the reservation lapse without confirming it.
+			LocalDateTime dateTime = LocalDateTime.of(2017, 2, 24, 17, 00);
+			ReservationRequestDTO request = new ReservationRequestDTO(totalNumberOfStandardSeats, PriceBand.PriceBandB, 1L, dateTime);
+			_service.reserveSeats(request);
+			Thread.sleep(RESERVATION_EXPIRY_TIME_IN_SECONDS * 1000);
+
+			// Another user can now hold the same seats.
+			ConcertService service = new DefaultService();
+			service.createUser(new UserDTO("Bulldog1", "123", "Thatcher", "Margaret"));
+			ReservationDTO reservation = service.reserveSeats(request);
+			assertEquals(totalNumberOfStandardSeats, reservation.getSeats().size());
+		} catch(ServiceException e) {
+			fail();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			fail();
+		}
+	}
+
 	@Test
 	public void testMakeReservationWithUnauthenticatedUser() {
 		try {
@@ -1,11 +1,24 @@
 package nz.ac.auckland.concert.client.service;
 
 import nz.ac.auckland.concert.client.clientApp.Subscription;
-import nz.ac.auckland.concert.common.dto.ConcertDTO;
-import nz.ac.auckland.concert.common.dto.PerformerDTO;
-import nz.ac.auckland.concert.common.dto.UserDTO;
+import nz.ac.auckland.concert.common.dto.*;
+import nz.ac.auckland.concert.common.message.Messages;
 import nz.ac.auckland.concert.common.types.PriceBand;
+import nz.ac.auckland.concert.common.types.SeatRow;
+import nz.ac.auckland.concert.service.domain.Mappers.SeatMapper;
+import nz.ac.auckland.concert.service.domain.SeatClaim;
+import nz.ac.auckland.concert.service.services.AuthenticationManager;
+import nz.ac.auckland.concert.service.services.CatalogueCache;
 import nz.ac.auckland.concert.service.services.ConcertApplication;
+import nz.ac.auckland.concert.service.services.ImageManager;
+import nz.ac.auckland.concert.service.services.PersistenceManager;
+import nz.ac.auckland.concert.service.util.AuthenticatedUser;
+import nz.ac.auckland.concert.service.util.LocalImageStore;
+import nz.ac.auckland.concert.service.util.NotificationHistory;
+import nz.ac.auckland.concert.service.util.PerformanceKey;
+import nz.ac.auckland.concert.service.util.StoredImage;
+import nz.ac.auckland.concert.service.util.TokenSigner;
+import nz.ac.auckland.concert.utility.TheatreLayout;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
@@ -14,14 +27,39 @@ import org.junit.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.persistence.EntityManager;
 import javax.ws.rs.client.Client;
 import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.client.Invocation;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
 import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import static org.junit.Assert.fail;
 
@@ -40,6 +78,8 @@ public class ExtendedConcertServiceTest {
     private static final int SERVER_PORT = 10000;
     private static final String WEB_SERVICE_CLASS_NAME = ConcertApplication.class.getName();
 
+    private static final String IMAGE_NAME = "EdSheeran.jpg"; // Stored image of performer 2
+
     private static Client _client;
     private static Server _server;
 
@@ -198,6 +238,109 @@ public class ExtendedConcertServiceTest {
         }
     }
 
+    @Test
+    public void testResumeNotificationHistoryAfterOverflow() {
+        NotificationHistory history = new NotificationHistory(3);
+        for (int i = 1; i <= 5; i++) {
+            Assert.assertEquals(i, history.append("News " + i));
+        }
+        Assert.assertEquals(5, history.getLatest());
+
+        // Only the newest notifications are held once the buffer has wrapped
+        Assert.assertEquals(Arrays.asList("News 5", "News 4", "News 3"), history.since(NotificationHistory.NONE));
+
+        // A cookie whose notification was overwritten resumes from the oldest one still held
+        Assert.assertEquals(Arrays.asList("News 5", "News 4", "News 3"), history.since(1));
+
+        // A cookie still in the buffer gets exactly what it missed, and an up to date one gets nothing
+        Assert.assertEquals(Arrays.asList("News 5", "News 4"), history.since(3));
+        Assert.assertEquals(Collections.emptyList(), history.since(5));
+
+        // A cookie from before a restart is ahead of the history, and gets everything held
+        Assert.assertEquals(Arrays.asList("News 5", "News 4", "News 3"), history.since(9));
+    }
+
+    @Test
+    public void testPerformerNewsStream() throws InterruptedException {
+        try {
+            UserDTO userDTO = new UserDTO("Bulldog", "123", "Churchill", "Winston");
+            _service.createUser(userDTO);
+
+            Subscription subscription = new Subscription();
+            NewsStream stream = _service.streamNewPerformers(subscription);
+            Thread.sleep(500); // Ensure the stream is open
+
+            ExtendedService service = new ExtendedService();
+            UserDTO userDTO2 = new UserDTO("Bulldog1", "123", "Churchill", "Winston");
+            service.createUser(userDTO2);
+
+            service.createPerformer(new PerformerDTO(null, "Boards of Canada", null, null, new HashSet<>()));
+            Thread.sleep(500); // Ensure subscription object is updated
+
+            Assert.assertTrue(subscription.isUnreadNotification());
+            Assert.assertTrue(subscription.getSubscription().get(0).contains("Boards of Canada"));
+
+            service.createPerformer(new PerformerDTO(null, "Burial", null, null, new HashSet<>()));
+            Thread.sleep(500); // Delivered on the same connection, without subscribing again
+
+            Assert.assertTrue(subscription.isUnreadNotification());
+            Assert.assertTrue(subscription.getSubscription().get(0).contains("Burial"));
+
+            stream.close();
+        } catch(ServiceException e) {
+            fail();
+        }
+    }
+
+    @Test
+    public void testNewsStreamReceivesConcurrentNotifications() throws InterruptedException {
+        final int publishers = 8;
+        try {
+            UserDTO userDTO = new UserDTO("Bulldog", "123", "Churchill", "Winston");
+            _service.createUser(userDTO);
+
+            List<String> received = Collections.synchronizedList(new ArrayList<>());
+            Subscription subscription = new Subscription() {
+                @Override
+                public void updateSubscription(List<String> message) {
+                    received.addAll(message); // Keep every notification, not just the latest
+                    super.updateSubscription(message);
+                }
+            };
+            NewsStream stream = _service.streamNewPerformers(subscription);
+            Thread.sleep(500); // Ensure the stream is open
+
+            ExtendedService service = new ExtendedService();
+            UserDTO userDTO2 = new UserDTO("Bulldog1", "123", "Churchill", "Winston");
+            service.createUser(userDTO2);
+
+            // Publish to the one topic from several threads at once
+            CountDownLatch start = new CountDownLatch(1);
+            ExecutorService executor = Executors.newFixedThreadPool(publishers);
+            for (int i = 0; i < publishers; i++) {
+                String name = "Concurrent Performer " + i;
+                executor.submit(() -> {
+                    start.await();
+                    return service.createPerformer(new PerformerDTO(null, name, null, null, new HashSet<>()));
+                });
+            }
+            start.countDown();
+            executor.shutdown();
+            Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+            Thread.sleep(1000); // Ensure subscription object is updated
+
+            Assert.assertEquals(publishers, received.size());
+            for (int i = 0; i < publishers; i++) {
+                String name = "Concurrent Performer " + i;
+                Assert.assertTrue(name + " was not received", received.stream().anyMatch(news -> news.contains(name)));
+            }
+
+            stream.close();
+        } catch(ServiceException e) {
+            fail();
+        }
+    }
+
     @Test
     public void testSubscribeToNewImages() throws InterruptedException {
         try {
@@ -258,4 +401,588 @@ public class ExtendedConcertServiceTest {
             fail();
         }
     }
+
+    @Test
+    public void testRefuseImageNotificationsForUnknownPerformer() {
+        _service.createUser(new UserDTO("Bulldog", "123", "Churchill", "Winston"));
+        String token = AuthenticationManager.instance().signToken("Bulldog", LocalDateTime.now().plusMinutes(5));
+
+        // Neither a long-poll nor a stream gets a topic for a performer that does not exist
+        for (String path : Arrays.asList("/images/getNotifications/999999", "/images/notifications/999999")) {
+            Response res = _client
+                    .target(Config.LOCAL_SERVER_ADDRESS + path)
+                    .request()
+                    .header("Authorization", token)
+                    .get();
+            try {
+                Assert.assertEquals(path, Response.Status.NOT_FOUND.getStatusCode(), res.getStatus());
+                Assert.assertEquals(Messages.UNKNOWN_PERFORMER, res.readEntity(String.class));
+            } finally {
+                res.close();
+            }
+        }
+    }
+
+
+        LocalDateTime now = LocalDateTime.now();
+        TokenSigner signer = new TokenSigner("a test key".getBytes(StandardCharsets.UTF_8));
+
+        // Round trip
+        String token = signer.sign("Bulldog", now.plusMinutes(5));
+        AuthenticatedUser user = signer.verify(token);
+        Assert.assertNotNull(user);
+        Assert.assertEquals("Bulldog", user.getName());
+        Assert.assertFalse(user.isExpired(now));
+
+        // Another username under the same signature, or another key, doesn't verify
+        String otherUsername = Base64.getUrlEncoder().withoutPadding().encodeToString("Margaret".getBytes(StandardCharsets.UTF_8));
+        Assert.assertNull(signer.verify(otherUsername + token.substring(token.indexOf('.'))));
+        Assert.assertNull(new TokenSigner("another key".getBytes(StandardCharsets.UTF_8)).verify(token));
+        Assert.assertNull(signer.verify("not a token"));
+
+        // An expired token verifies, but is expired
+        Assert.assertTrue(signer.verify(signer.sign("Bulldog", now.minusMinutes(5))).isExpired(now));
+
+        // The service refuses tokens signed with its own key once they are tampered with or expired
+        _service.createUser(new UserDTO("Bulldog", "123", "Churchill", "Winston"));
+        String valid = AuthenticationManager.instance().signToken("Bulldog", now.plusMinutes(5));
+        String tampered = otherUsername + valid.substring(valid.indexOf('.'));
+        String expired = AuthenticationManager.instance().signToken("Bulldog", now.minusMinutes(5));
+        for (String refused : Arrays.asList(tampered, expired)) {
+            Response res = _client
+                    .target(Config.LOCAL_SERVER_ADDRESS + "/users/book")
+                    .request()
+                    .header("Authorization", refused)
+                    .accept(MediaType.APPLICATION_XML)
+                    .get();
+            try {
+                Assert.assertEquals(Response.Status.UNAUTHORIZED.getStatusCode(), res.getStatus());
+                Assert.assertEquals(Messages.BAD_AUTHENTICATON_TOKEN, res.readEntity(String.class));
+            } finally {
+                res.close();
+            }
+        }
+    }
+
+    @Test
+    public void testRetrievePageWithMalformedCursor() {
+        Response res = _client
+                .target(Config.LOCAL_SERVER_ADDRESS + "/concerts")
+                .queryParam("cursor", "not-a-cursor")
+                .queryParam("size", 5)
+                .request()
+                .accept(MediaType.APPLICATION_XML)
+                .get();
+        try {
+            Assert.assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), res.getStatus());
+            Assert.assertEquals(Messages.MALFORMED_PAGE_CURSOR, res.readEntity(String.class));
+        } finally {
+            res.close();
+        }
+
+        res = _client
+                .target(Config.LOCAL_SERVER_ADDRESS + "/performers")
+                .queryParam("start", -1)
+                .request()
+                .accept(MediaType.APPLICATION_XML)
+                .get();
+        try {
+            Assert.assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), res.getStatus());
+            Assert.assertEquals(Messages.ILLEGAL_PAGE_RANGE, res.readEntity(String.class));
+        } finally {
+            res.close();
+        }
+    }
+
+    @Test
+    public void testRetrieveConcertWithOneStatement() {
+        resetQueryCounts();
+        Response res = _client
+                .target(Config.LOCAL_SERVER_ADDRESS + "/concerts/1")
+                .request()
+                .accept(MediaType.APPLICATION_XML)
+                .get();
+        try {
+            Assert.assertEquals(Response.Status.OK.getStatusCode(), res.getStatus());
+            Assert.assertFalse(res.readEntity(ConcertDTO.class).getDates().isEmpty());
+        } finally {
+            res.close();
+        }
+
+        // Dates, prices and performers are fetched with the concert itself
+        Assert.assertEquals(1, PersistenceManager.instance().getStatistics().getPrepareStatementCount());
+    }
+
+    @Test
+    public void testReserveSeatsWithConcertDatesFromQueryCache() {
+        try {
+            LocalDateTime dateTime = LocalDateTime.of(2017, 2, 24, 17, 00);
+            reserveCountingStatements("Bulldog", 1, dateTime);
+            long hits = statistic("cache", "query-cache", "hits");
+
+            reserveCountingStatements("Bulldog1", 1, dateTime);
+            Assert.assertTrue(statistic("cache", "query-cache", "hits") > hits);
+        } catch(ServiceException e) {
+            fail();
+        }
+    }
+
+    @Test
+    public void testRetrieveCataloguePagesWithoutPerEntityQueries() {
+        _service.getPerformers(); // Start the service before counting
+
+        // Pages of 10 are requested 4 at a time, so a single round covers every concert and performer
+        resetQueryCounts();
+        Set<ConcertDTO> concerts = _service.getConcerts();
+        Assert.assertEquals(25, concerts.size());
+        assertStatementsPerPage(4);
+
+        resetQueryCounts();
+        Set<PerformerDTO> performers = _service.getPerformers();
+        Assert.assertEquals(20, performers.size());
+        assertStatementsPerPage(4);
+    }
+
+    @Test
+    public void testFetchWindowsInRoundsAndMergeInWindowOrder() {
+        List<Integer> source = IntStream.range(0, 7).boxed().collect(Collectors.toList());
+        List<Integer> offsets = new ArrayList<>();
+        List<CompletableFuture<List<Integer>>> round = new ArrayList<>();
+        PageFetcher fetcher = new PageFetcher(3, 2);
+
+        // Each window stays pending until its whole round is in flight, then the windows complete last to first
+        List<Integer> items = fetcher.fetchAll(start -> {
+            offsets.add(start);
+            CompletableFuture<List<Integer>> window = new CompletableFuture<>();
+            round.add(window);
+            if (round.size() == fetcher.getParallelism()) {
+                for (int i = round.size() - 1; i >= 0; i--) {
+                    int from = Math.min(offsets.get(offsets.size() - round.size() + i), source.size());
+                    round.get(i).complete(source.subList(from, Math.min(from + fetcher.getWindowSize(), source.size())));
+                }
+                round.clear();
+            }
+            return window;
+        });
+
+        // Two rounds of two windows are needed, and the short third window ends retrieval
+        Assert.assertEquals(source, items);
+        Assert.assertEquals(Arrays.asList(0, 3, 6, 9), offsets);
+    }
+
+    @Test
+    public void testRetrieveBookingsWithoutPerEntityQueries() {
+        try {
+            final int numberOfBookings = 3;
+
+            UserDTO userDTO = new UserDTO("Bulldog", "123", "Churchill", "Winston");
+            _service.createUser(userDTO);
+            CreditCardDTO creditCard = new CreditCardDTO(CreditCardDTO.Type.Visa, "Winston Churchill", "4929-1500-0055-9544", LocalDate.of(2019, 7, 31));
+            _service.registerCreditCard(creditCard);
+
+            LocalDateTime dateTime = LocalDateTime.of(2017, 2, 24, 17, 00);
+            for (int i = 0; i < numberOfBookings; i++) {
+                ReservationRequestDTO request = new ReservationRequestDTO(2, PriceBand.PriceBandC, 1L, dateTime);
+                _service.confirmReservation(_service.reserveSeats(request));
+            }
+
+            resetQueryCounts();
+            Set<BookingDTO> bookings = _service.getBookings();
+            Assert.assertEquals(numberOfBookings, bookings.size());
+            assertStatementsPerPage(4);
+        } catch(ServiceException e) {
+            fail();
+        }
+    }
+
+    @Test
+    public void testRetrieveCatalogueAgainFromCatalogueCache() {
+        resetQueryCounts();
+        Set<ConcertDTO> concerts = _service.getConcerts();
+        Set<PerformerDTO> performers = _service.getPerformers();
+        long hits = statistic("cache", "catalogue-cache", "hits");
+
+        // Repeated reads are answered from the catalogue cache without touching the database
+        PersistenceManager.instance().getStatistics().clear();
+        Assert.assertEquals(concerts, _service.getConcerts());
+        Assert.assertEquals(performers, _service.getPerformers());
+        Assert.assertEquals(0, PersistenceManager.instance().getStatistics().getPrepareStatementCount());
+        Assert.assertTrue(statistic("cache", "catalogue-cache", "hits") > hits);
+    }
+
+    @Test
+    public void testRevalidateCatalogueAndImages() {
+        // A client that still holds the current version is answered with 304 and no body
+        for (String path : Arrays.asList("/concerts", "/performers", "/images/" + IMAGE_NAME)) {
+            EntityTag tag = tagOf(path);
+            Response res = _client
+                    .target(Config.LOCAL_SERVER_ADDRESS + path)
+                    .request()
+                    .header("If-None-Match", tag.toString())
+                    .get();
+            try {
+                Assert.assertEquals(path, Response.Status.NOT_MODIFIED.getStatusCode(), res.getStatus());
+            } finally {
+                res.close();
+            }
+        }
+
+        try {
+            _service.createUser(new UserDTO("Bulldog", "123", "Churchill", "Winston"));
+            PerformerDTO performer = _client
+                    .target(Config.LOCAL_SERVER_ADDRESS + "/performers/1")
+                    .request()
+                    .accept(MediaType.APPLICATION_XML)
+                    .get(PerformerDTO.class);
+            String imageName = "test.jpg".equals(performer.getImageName()) ? IMAGE_NAME : "test.jpg";
+
+            // Giving a performer another image changes its own tag and the tag of the page that lists it
+            EntityTag tag = tagOf("/performers/1");
+            EntityTag page = tagOf("/performers");
+            _service.addImage(new PerformerDTO(1L, performer.getName(), imageName, null, new HashSet<>()));
+            try {
+                Assert.assertNotEquals(tag, tagOf("/performers/1"));
+                Assert.assertNotEquals(page, tagOf("/performers"));
+            } finally {
+                if (performer.getImageName() != null) { // Other tests expect the performer's image to be unchanged
+                    _service.addImage(performer);
+                }
+            }
+        } catch(ServiceException e) {
+            fail();
+        }
+    }
+
+    @Test
+    public void testExportCatalogue() {
+        Set<ConcertDTO> concerts = new HashSet<>();
+        _service.exportConcerts(concerts::add);
+        Assert.assertEquals(_service.getConcerts(), concerts);
+
+        Set<PerformerDTO> performers = new HashSet<>();
+        _service.exportPerformers(performers::add);
+        Assert.assertEquals(_service.getPerformers(), performers);
+    }
+
+    @Test
+    public void testStreamCatalogue() {
+        List<ConcertDTO> concerts = _service.streamConcerts().collect(Collectors.toList());
+        Assert.assertEquals(_service.getConcerts(), new HashSet<>(concerts));
+        for (int i = 1; i < concerts.size(); i++) {
+            Assert.assertTrue(concerts.get(i - 1).getId() < concerts.get(i).getId());
+        }
+
+        Set<PerformerDTO> performers = _service.streamPerformers().collect(Collectors.toSet());
+        Assert.assertEquals(_service.getPerformers(), performers);
+
+        resetQueryCounts();
+        Assert.assertTrue(_service.streamConcerts().findFirst().isPresent());
+        assertStatementsPerPage(1); // Only the first page is requested
+    }
+
+    @Test
+    public void testDownloadImageAgainFromImageCache() {
+        ImageManager.instance().evict(IMAGE_NAME); // Downloaded by the first request below
+        long downloads = statistic("images", "images", "downloads");
+
+        byte[] image = downloadImage(IMAGE_NAME);
+        Assert.assertEquals(downloads + 1, statistic("images", "images", "downloads"));
+        long hits = statistic("images", "images", "hits");
+
+        // The second request is served from the cached copy without going back to S3
+        Assert.assertArrayEquals(image, downloadImage(IMAGE_NAME));
+        Assert.assertEquals(downloads + 1, statistic("images", "images", "downloads"));
+        Assert.assertTrue(statistic("images", "images", "hits") > hits);
+    }
+
+    @Test
+    public void testDownloadImageOnceForConcurrentRequests() throws Exception {
+        final int numberOfRequests = 8;
+
+        byte[] image = downloadImage(IMAGE_NAME);
+        ImageManager.instance().evict(IMAGE_NAME); // Not cached when the requests below arrive
+        long downloads = statistic("images", "images", "downloads");
+
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(numberOfRequests);
+        List<Future<byte[]>> results = new ArrayList<>();
+        for (int i = 0; i < numberOfRequests; i++) {
+            results.add(executor.submit(() -> {
+                Client client = ClientBuilder.newClient(); // A client holds a single connection
+                try {
+                    start.await();
+                    return client
+                            .target(Config.LOCAL_SERVER_ADDRESS + "/images/" + IMAGE_NAME)
+                            .request()
+                            .accept("image/png")
+                            .get(byte[].class);
+                } finally {
+                    client.close();
+                }
+            }));
+        }
+        start.countDown();
+        for (Future<byte[]> result : results) {
+            Assert.assertArrayEquals(image, result.get(30, TimeUnit.SECONDS));
+        }
+        executor.shutdown();
+
+        // Every request was answered from a single download, either by sharing it or from the copy it cached
+        Assert.assertEquals(downloads + 1, statistic("images", "images", "downloads"));
+    }
+
+    @Test
+    public void testRejectImageNamesOutsideTheStoreDirectory() throws IOException {
+        Path root = Files.createTempDirectory("images");
+        Path directory = Files.createDirectory(root.resolve("store"));
+        Files.write(directory.resolve("image.jpg"), new byte[] {1, 2, 3});
+        Files.write(root.resolve("secret.txt"), new byte[] {4, 5, 6});
+        LocalImageStore store = new LocalImageStore(directory);
+
+        try (StoredImage image = store.open("image.jpg")) {
+            Assert.assertEquals(3, image.getLength());
+        }
+
+        // Names that resolve to a file outside the directory are reported as missing, even when the file exists
+        for (String imageName : Arrays.asList("../secret.txt", "image.jpg/../../secret.txt", root.resolve("secret.txt").toString())) {
+            try {
+                store.open(imageName).close();
+                fail(imageName);
+            } catch (NoSuchFileException e) {
+                Assert.assertEquals(imageName, e.getFile());
+            }
+        }
+    }
+
+    @Test
+    public void testDownloadImageVariant() {
+        PerformerDTO performer = new PerformerDTO(2L, "Ed Sheeran", IMAGE_NAME, null, new HashSet<>());
+
+        BufferedImage variant = (BufferedImage) _service.getImageForPerformer(performer, 64);
+        Assert.assertTrue(Math.max(variant.getWidth(), variant.getHeight()) <= 64);
+
+        try {
+            _service.getImageForPerformer(performer, 100000);
+            fail();
+        } catch (ServiceException e) {
+            Assert.assertEquals(Messages.ILLEGAL_IMAGE_SIZE, e.getMessage());
+        }
+    }
+
+    @Test
+    public void testDownloadImageVariantAgainWithoutTheOriginal() {
+        PerformerDTO performer = new PerformerDTO(2L, "Ed Sheeran", IMAGE_NAME, null, new HashSet<>());
+        _service.getImageForPerformer(performer, 48); // Rendered, or already cached
+        long renders = statistic("images", "image-variants", "renders");
+        long variantHits = statistic("images", "image-variants", "hits");
+        long hits = statistic("images", "images", "hits");
+        long misses = statistic("images", "images", "misses");
+
+        // The cached variant is served without opening the original image
+        _service.getImageForPerformer(performer, 48);
+        Assert.assertEquals(renders, statistic("images", "image-variants", "renders"));
+        Assert.assertTrue(statistic("images", "image-variants", "hits") > variantHits);
+        Assert.assertEquals(hits, statistic("images", "images", "hits"));
+        Assert.assertEquals(misses, statistic("images", "images", "misses"));
+    }
+
+    @Test
+    public void testDownloadImageRange() {
+        byte[] image;
+        EntityTag tag;
+        Response res = imageRequest(IMAGE_NAME).get();
+        try {
+            Assert.assertEquals(Response.Status.OK.getStatusCode(), res.getStatus());
+            Assert.assertEquals("bytes", res.getHeaderString("Accept-Ranges"));
+            tag = res.getEntityTag();
+            image = res.readEntity(byte[].class);
+        } finally {
+            res.close();
+        }
+
+        // The tail of the image, as when resuming an interrupted download of this version
+        res = imageRequest(IMAGE_NAME).header("Range", "bytes=100-").header("If-Range", tag.toString()).get();
+        try {
+            Assert.assertEquals(Response.Status.PARTIAL_CONTENT.getStatusCode(), res.getStatus());
+            Assert.assertEquals("bytes 100-" + (image.length - 1) + "/" + image.length, res.getHeaderString("Content-Range"));
+            Assert.assertArrayEquals(Arrays.copyOfRange(image, 100, image.length), res.readEntity(byte[].class));
+        } finally {
+            res.close();
+        }
+
+        // A partial copy of another version gets the whole image instead
+        res = imageRequest(IMAGE_NAME).header("Range", "bytes=100-").header("If-Range", "\"another-version\"").get();
+        try {
+            Assert.assertEquals(Response.Status.OK.getStatusCode(), res.getStatus());
+            Assert.assertArrayEquals(image, res.readEntity(byte[].class));
+        } finally {
+            res.close();
+        }
+    }
+
+    @Test
+    public void testReaperReleasesLapsedHolds() throws InterruptedException {
+        try {
+            _service.createUser(new UserDTO("Bulldog", "123", "Churchill", "Winston"));
+            long released = statistic("reaper", "reaper", "released-holds");
+
+            ReservationRequestDTO request = new ReservationRequestDTO(2, PriceBand.PriceBandC, 1L, LocalDateTime.of(2017, 2, 24, 17, 00));
+            _service.reserveSeats(request);
+            Thread.sleep(2000); // Past the reservation's expiry and the reaper's next tick
+
+            Assert.assertTrue(statistic("reaper", "reaper", "released-holds") > released);
+        } catch(ServiceException e) {
+            fail();
+        }
+    }
+
+    @Test
+    public void testReserveSeatsWithBatchedClaimInserts() {
+        try {
+            LocalDateTime dateTime = LocalDateTime.of(2017, 2, 24, 17, 00);
+            reserveCountingStatements("Bulldog", 1, dateTime); // Loads the performance's inventory and caches its dates
+
+            // Each extra seat costs one insert of its SeatReservation, whose id is generated by the database. Seat
+            // claims and the reservation's seat links are sent in batches, so they cost nothing per seat.
+            long oneSeat = reserveCountingStatements("Bulldog1", 1, dateTime);
+            long tenSeats = reserveCountingStatements("Bulldog2", 10, dateTime);
+            Assert.assertTrue("Reserving 9 more seats took " + (tenSeats - oneSeat) + " more SQL statements",
+                    tenSeats - oneSeat <= 9 + 2); // Allows for a background purge of expired reservations
+        } catch(ServiceException e) {
+            fail();
+        }
+    }
+
+    @Test
+    public void testRetryReservationsThatCollideWithAnotherWriter() throws Exception {
+        final int numberOfUsers = 3;
+        final int numberOfSeatsToBook = 2;
+        LocalDateTime dateTime = LocalDateTime.of(2017, 2, 24, 17, 00);
+        reserveCountingStatements("Bulldog", 1, dateTime); // Loads the performance's inventory
+
+        // Another writer, e.g. a second service instance on the same database, claims every band A seat outside the
+        // last row behind this instance's back, so the seats its inventory offers first are already taken.
+        List<SeatDTO> seats = TheatreLayout.getSeatsForPriceBand(PriceBand.PriceBandA);
+        SeatRow lastRow = seats.get(seats.size() - 1).getRow();
+        PerformanceKey key = new PerformanceKey(1L, dateTime);
+        EntityManager em = PersistenceManager.instance().createEntityManager();
+        try {
+            em.getTransaction().begin();
+            for (SeatDTO seat : seats) {
+                if (seat.getRow() != lastRow) {
+                    em.persist(new SeatClaim(SeatMapper.toClaimId(key, seat), -1, LocalDateTime.now().plusMinutes(5)));
+                }
+            }
+            em.getTransaction().commit();
+        } finally {
+            em.close();
+        }
+
+        long retries = statistic("retries", "reserve", "retries");
+        long failures = statistic("retries", "reserve", "failures");
+
+        List<ExtendedService> services = new ArrayList<>();
+        for (int i = 1; i <= numberOfUsers; i++) {
+            ExtendedService service = new ExtendedService();
+            service.createUser(new UserDTO("Bulldog" + i, "123", "Churchill", "Winston"));
+            services.add(service);
+        }
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(numberOfUsers);
+        List<Future<ReservationDTO>> results = new ArrayList<>();
+        for (ExtendedService service : services) {
+            results.add(executor.submit(() -> {
+                start.await();
+                return service.reserveSeats(new ReservationRequestDTO(numberOfSeatsToBook, PriceBand.PriceBandA, 1L, dateTime));
+            }));
+        }
+        start.countDown();
+        for (Future<ReservationDTO> result : results) {
+            for (SeatDTO seat : result.get(30, TimeUnit.SECONDS).getSeats()) { // Rethrows any ServiceException
+                Assert.assertEquals(lastRow, seat.getRow());
+            }
+        }
+        executor.shutdown();
+
+        // The collision was retried against the seats actually left, and no reservation gave up
+        Assert.assertTrue(statistic("retries", "reserve", "retries") > retries);
+        Assert.assertEquals(failures, statistic("retries", "reserve", "failures"));
+    }
+
+    private static Invocation.Builder imageRequest(String imageName) {
+        return _client.target(Config.LOCAL_SERVER_ADDRESS + "/images/" + imageName).request().accept("image/png");
+    }
+
+    // Clears the service's caches and statement counts, so that every entity read afterwards has to come from the database
+    private static void resetQueryCounts() {
+        CatalogueCache.instance().invalidate();
+        EntityManager em = PersistenceManager.instance().createEntityManager();
+        try {
+            em.getEntityManagerFactory().getCache().evictAll();
+        } finally {
+            em.close();
+        }
+        PersistenceManager.instance().getStatistics().clear();
+    }
+
+    // A page costs one query for its ids and one for the entities with everything the mappers read
+    private static void assertStatementsPerPage(int pages) {
+        long statements = PersistenceManager.instance().getStatistics().getPrepareStatementCount();
+        _logger.info("Read (" + pages + ") pages with (" + statements + ") SQL statements");
+        Assert.assertTrue("Expected at most " + (2 * pages) + " SQL statements but was " + statements, statements <= 2 * pages);
+    }
+
+    // Returns the entity tag of a fully sent resource
+    private static EntityTag tagOf(String path) {
+        Response res = _client.target(Config.LOCAL_SERVER_ADDRESS + path).request().get();
+        try {
+            Assert.assertEquals(path, Response.Status.OK.getStatusCode(), res.getStatus());
+            Assert.assertNotNull(path, res.getEntityTag());
+            return res.getEntityTag();
+        } finally {
+            res.close();
+        }
+    }
+
+    // Reserves seats as a new user, returning the number of SQL statements the reservation took
+    private static long reserveCountingStatements(String username, int numberOfSeats, LocalDateTime dateTime) {
+        ExtendedService service = new ExtendedService();
+        service.createUser(new UserDTO(username, "123", "Churchill", "Winston"));
+
+        long before = PersistenceManager.instance().getStatistics().getPrepareStatementCount();
+        ReservationDTO reservation = service.reserveSeats(new ReservationRequestDTO(numberOfSeats, PriceBand.PriceBandC, 1L, dateTime));
+        Assert.assertEquals(numberOfSeats, reservation.getSeats().size());
+        return PersistenceManager.instance().getStatistics().getPrepareStatementCount() - before;
+    }
+
+    // Reads one counter from a /statistics report, whose lines look like "name: counter=value counter=value"
+    private static byte[] downloadImage(String imageName) {
+        Response res = imageRequest(imageName).get();
+        try {
+            Assert.assertEquals(Response.Status.OK.getStatusCode(), res.getStatus());
+            return res.readEntity(byte[].class);
+        } finally {
+            res.close();
+        }
+    }
+
+    private static long statistic(String report, String name, String counter) {
+        String text = _client
+                .target(Config.LOCAL_SERVER_ADDRESS + "/statistics/" + report)
+                .request()
+                .accept(MediaType.TEXT_PLAIN)
+                .get(String.class);
+        for (String line : text.split("\\R")) {
+            if (!line.startsWith(name + ": ")) {
+                continue;
+            }
+            for (String field : line.substring(name.length() + 2).trim().split(" ")) {
+                String[] pair = field.split("=");
+                if (pair[0].equals(counter)) {
+                    return Long.parseLong(pair[1]);
+                }
+            }
+        }
+        throw new AssertionError("No " + counter + " for " + name + " in " + text);
+    }
 }
@@ -64,6 +64,10 @@ public class PerformerDTO {
 		return _imageName;
 	}
 	
+	public Genre getGenre() {
+		return _genre;
+	}
+	
 	public Set<Long> getConcertIds() {
 		return Collections.unmodifiableSet(_concertIds);
 	}
@@ -25,4 +25,11 @@ public class Messages {
 	public static final String EXPIRED_RESERVATION = "Unable to confirm reservation - reservation has expired";
 
 	public static final String NO_IMAGE_FOR_PERFORMER = "Unable to download image - no image associated with requested performer";
+	public static final String ILLEGAL_IMAGE_SIZE = "Unable to download image - requested size is out of range";
+
+	public static final String MALFORMED_PAGE_CURSOR = "Unable to retrieve results - unrecognised page cursor";
+	public static final String ILLEGAL_PAGE_RANGE = "Unable to retrieve results - page start and size must not be negative";
+
+	public static final String TOO_MANY_EVENT_STREAMS = "Unable to open notification stream - too many streams open, try again later";
+	public static final String UNKNOWN_PERFORMER = "Unable to subscribe - unrecognised performer";
 }
@@ -1,18 +1,42 @@
 package nz.ac.auckland.concert.utility;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
+import nz.ac.auckland.concert.common.dto.SeatDTO;
 import nz.ac.auckland.concert.common.types.PriceBand;
+import nz.ac.auckland.concert.common.types.SeatNumber;
 import nz.ac.auckland.concert.common.types.SeatRow;
 
 /**
  * Utility class that models the layout of seats at the concert venue.
  *
+ * The layout also provides an immutable seat catalogue: exactly one canonical
+ * SeatDTO exists for each physical seat, and each seat has a dense integer
+ * index (see getSeatIndex()) so that sets of seats can be represented as
+ * arrays or bitsets rather than as hashed collections of SeatDTOs.
+ *
  */
 public class TheatreLayout {
 	
+	/**
+	 * The largest number of seats in any row, and the stride between rows
+	 * in the dense seat index.
+	 */
+	public static final int MAX_SEATS_PER_ROW = 26;
+	
+	/**
+	 * Size of the dense seat index space; every seat index is in the range
+	 * 0..SEAT_INDEX_COUNT-1.
+	 */
+	public static final int SEAT_INDEX_COUNT = SeatRow.values().length * MAX_SEATS_PER_ROW;
+	
 	private static Set<SeatRow> _rowsInPriceBandA;
 	private static Set<SeatRow> _rowsInPriceBandB;
 	private static Set<SeatRow> _rowsInPriceBandC;
@@ -47,6 +71,35 @@ public class TheatreLayout {
 		
 	}
 	
+	// Seat catalogue: canonical seats by dense index, and by price band in
+	// front-to-back, left-to-right order.
+	private static final SeatDTO[] _seatsByIndex = new SeatDTO[SEAT_INDEX_COUNT];
+	private static final Map<PriceBand, List<SeatDTO>> _seatsInPriceBand = new EnumMap<PriceBand, List<SeatDTO>>(PriceBand.class);
+	private static final Map<SeatRow, PriceBand> _priceBandOfRow = new EnumMap<SeatRow, PriceBand>(SeatRow.class);
+	
+	static {
+		SeatNumber[] numbers = new SeatNumber[MAX_SEATS_PER_ROW];
+		for (int i = 0; i < MAX_SEATS_PER_ROW; i++) {
+			numbers[i] = new SeatNumber(i + 1);
+		}
+		
+		for (PriceBand band : PriceBand.values()) {
+			List<SeatDTO> seats = new ArrayList<SeatDTO>();
+			for (SeatRow row : SeatRow.values()) { // Enum order is front-to-back
+				if (!getRowsForPriceBand(band).contains(row)) {
+					continue;
+				}
+				_priceBandOfRow.put(row, band);
+				for (int number = 1; number <= getNumberOfSeatsForRow(row); number++) {
+					SeatDTO seat = new SeatDTO(row, numbers[number - 1]);
+					_seatsByIndex[getSeatIndex(row, number)] = seat;
+					seats.add(seat);
+				}
+			}
+			_seatsInPriceBand.put(band, Collections.unmodifiableList(Arrays.asList(seats.toArray(new SeatDTO[seats.size()]))));
+		}
+	}
+	
 	// This is utility class, so hide the constructor to prevent instantiation.
 	private TheatreLayout() {}
 	
@@ -93,4 +146,60 @@ public class TheatreLayout {
 		return rows;
 	}
 	
+	/**
+	 * Returns the price band that a row belongs to, or null for rows that
+	 * are not part of any price band.
+	 *
+	 */
+	public static PriceBand getPriceBandForRow(SeatRow row) {
+		return _priceBandOfRow.get(row);
+	}
+	
+	/**
+	 * Returns the dense index of a seat: row ordinal * MAX_SEATS_PER_ROW +
+	 * (number - 1). The index does not check that the seat exists.
+	 *
+	 */
+	public static int getSeatIndex(SeatRow row, int number) {
+		return row.ordinal() * MAX_SEATS_PER_ROW + number - 1;
+	}
+	
+	/**
+	 * Returns the dense index of a seat.
+	 *
+	 */
+	public static int getSeatIndex(SeatDTO seat) {
+		return getSeatIndex(seat.getRow(), seat.getNumber().intValue());
+	}
+	
+	/**
+	 * Returns the canonical SeatDTO with the specified dense index, or null
+	 * if no such seat exists at the concert venue.
+	 *
+	 */
+	public static SeatDTO getSeat(int index) {
+		return index < 0 || index >= SEAT_INDEX_COUNT ? null : _seatsByIndex[index];
+	}
+	
+	/**
+	 * Returns the canonical SeatDTO for a row and seat number, or null if no
+	 * such seat exists at the concert venue.
+	 *
+	 */
+	public static SeatDTO getSeat(SeatRow row, int number) {
+		if (number < 1 || number > MAX_SEATS_PER_ROW) {
+			return null;
+		}
+		return _seatsByIndex[getSeatIndex(row, number)];
+	}
+	
+	/**
+	 * Returns the canonical seats within the specified price band, ordered
+	 * row by row from the front of the venue. The list is immutable.
+	 *
+	 */
+	public static List<SeatDTO> getSeatsForPriceBand(PriceBand priceBand) {
+		return _seatsInPriceBand.get(priceBand);
+	}
+	
 }
@@ -4,8 +4,17 @@ import javax.persistence.*;
 
 @Entity
 @Table(name = "BOOKINGS")
+@NamedEntityGraph(name = Booking.SUMMARY_GRAPH, // Everything BookingMapper reads
+        attributeNodes = @NamedAttributeNode(value = "reservation", subgraph = "reservation"),
+        subgraphs = @NamedSubgraph(name = "reservation", attributeNodes = {
+                @NamedAttributeNode("concert"),
+                @NamedAttributeNode("seats")
+        })
+)
 public class Booking {
 
+    public static final String SUMMARY_GRAPH = "Booking.summary";
+
     public Booking() {}
 
     public Booking(Reservation reservation, User user) {
@@ -28,6 +37,10 @@ public class Booking {
     @Version
     private long version;
 
+    public long getId() {
+        return id;
+    }
+
     public Reservation getReservation() {
         return reservation;
     }
@@ -2,6 +2,8 @@ package nz.ac.auckland.concert.service.domain;
 
 import nz.ac.auckland.concert.common.types.PriceBand;
 import nz.ac.auckland.concert.service.domain.jpa.LocalDateTimeConverter;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
 
 import javax.persistence.*;
 import java.math.BigDecimal;
@@ -12,8 +14,17 @@ import java.util.stream.Collectors;
 
 @Entity
 @Table(name = "CONCERTS")
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE) // Read-mostly catalogue, shared across persistence contexts
+@NamedEntityGraph(name = Concert.CATALOGUE_GRAPH, attributeNodes = { // Everything ConcertMapper reads
+        @NamedAttributeNode("dates"),
+        @NamedAttributeNode("prices"),
+        @NamedAttributeNode("performers")
+})
 public class Concert {
 
+    public static final String CATALOGUE_GRAPH = "Concert.catalogue";
+
     public Concert() {} // Default constructor required for JPA
 
     public Concert(long id, String title, Set<LocalDateTime> dates, Map<PriceBand, BigDecimal> prices, Set<Performer> performers) {
@@ -35,12 +46,14 @@ public class Concert {
     private String title;
 
 
+    @Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
     @ElementCollection
     @CollectionTable(name = "CONCERT_DATES")
     @Convert(converter = LocalDateTimeConverter.class)
     private Set<LocalDateTime> dates;
 
 
+    @Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
     @ElementCollection
     @CollectionTable(name = "CONCERT_TARIFS", joinColumns = @JoinColumn(name = "CONCERT_ID"))
     @MapKeyColumn(name = "PRICE_BAND")
@@ -50,6 +63,7 @@ public class Concert {
     private Map<PriceBand, BigDecimal> prices;
 
 
+    @Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
     @ManyToMany(cascade = CascadeType.PERSIST, fetch = FetchType.LAZY)
     @JoinTable(
             name = "CONCERT_PERFORMER",
@@ -1,7 +1,11 @@
 package nz.ac.auckland.concert.service.domain.Mappers;
 
 import nz.ac.auckland.concert.common.dto.SeatDTO;
+import nz.ac.auckland.concert.common.types.SeatNumber;
+import nz.ac.auckland.concert.service.domain.SeatClaimId;
 import nz.ac.auckland.concert.service.domain.SeatReservation;
+import nz.ac.auckland.concert.service.util.PerformanceKey;
+import nz.ac.auckland.concert.utility.TheatreLayout;
 
 /**
  * Mapper class for mapping Seat domain model objects to SeatDTO's and vice-versa.
@@ -9,7 +13,8 @@ import nz.ac.auckland.concert.service.domain.SeatReservation;
 public class SeatMapper {
 
     public static SeatDTO toDto(SeatReservation reservation) {
-        return new SeatDTO(
+        SeatDTO seat = TheatreLayout.getSeat(reservation.getRow(), reservation.getNumber().intValue()); // Canonical instance
+        return seat != null ? seat : new SeatDTO(
                 reservation.getRow(),
                 reservation.getNumber()
         );
@@ -22,4 +27,21 @@ public class SeatMapper {
         );
     }
 
+    public static SeatDTO toDto(SeatClaimId claimId) {
+        SeatDTO seat = TheatreLayout.getSeat(claimId.getRow(), claimId.getNumber()); // Canonical instance
+        return seat != null ? seat : new SeatDTO(
+                claimId.getRow(),
+                new SeatNumber(claimId.getNumber())
+        );
+    }
+
+    public static SeatClaimId toClaimId(PerformanceKey key, SeatDTO dto) {
+        return new SeatClaimId(
+                key.getConcertId(),
+                key.getDate(),
+                dto.getRow(),
+                dto.getNumber().intValue()
+        );
+    }
+
 }
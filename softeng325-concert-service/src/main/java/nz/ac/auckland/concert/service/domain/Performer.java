@@ -1,6 +1,8 @@
 package nz.ac.auckland.concert.service.domain;
 
 import nz.ac.auckland.concert.common.types.Genre;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
 
 import javax.persistence.*;
 import java.util.HashSet;
@@ -9,8 +11,13 @@ import java.util.stream.Collectors;
 
 @Entity
 @Table(name = "PERFORMERS")
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE) // Read-mostly catalogue, shared across persistence contexts
+@NamedEntityGraph(name = Performer.CATALOGUE_GRAPH, attributeNodes = @NamedAttributeNode("concerts")) // Everything PerformerMapper reads
 public class Performer  {
 
+    public static final String CATALOGUE_GRAPH = "Performer.catalogue";
+
     public Performer() {}
 
     public Performer(Long id) {
@@ -44,6 +51,7 @@ public class Performer  {
     private Genre genre;
 
 
+    @Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
     @ManyToMany(mappedBy = "performers", fetch = FetchType.LAZY)
     private Set<Concert> concerts;
 
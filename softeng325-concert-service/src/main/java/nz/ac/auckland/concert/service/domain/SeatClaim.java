@@ -0,0 +1,53 @@
+package nz.ac.auckland.concert.service.domain;
+
+import nz.ac.auckland.concert.service.domain.jpa.LocalDateTimeConverter;
+
+import javax.persistence.*;
+import java.time.LocalDateTime;
+
+/**
+ * A seat that is held by a reservation or sold to a booking, keyed by the seat and performance it belongs to. A
+ * seat can only be claimed once per performance; a held claim may be removed once its expiry has passed.
+ */
+@Entity
+@Table(name = "SEAT_CLAIMS", indexes = @Index(name = "SEAT_CLAIMS_RESERVATION_ID", columnList = "RESERVATION_ID"))
+public class SeatClaim {
+
+    public SeatClaim() {}
+
+    public SeatClaim(SeatClaimId id, long reservationId, LocalDateTime expiry) {
+        this.id = id;
+        this.reservationId = reservationId;
+        this.expiry = expiry;
+        this.booked = false;
+    }
+
+    @EmbeddedId
+    private SeatClaimId id;
+
+    @Column(name = "RESERVATION_ID")
+    private long reservationId;
+
+    @Column(name = "EXPIRY")
+    @Convert(converter = LocalDateTimeConverter.class)
+    private LocalDateTime expiry;
+
+    @Column(name = "BOOKED")
+    private boolean booked;
+
+    public SeatClaimId getId() {
+        return id;
+    }
+
+    public long getReservationId() {
+        return reservationId;
+    }
+
+    public LocalDateTime getExpiry() {
+        return expiry;
+    }
+
+    public boolean isBooked() {
+        return booked;
+    }
+}
@@ -0,0 +1,84 @@
+package nz.ac.auckland.concert.service.domain;
+
+import nz.ac.auckland.concert.common.types.SeatRow;
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+
+import javax.persistence.Column;
+import javax.persistence.Embeddable;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import java.io.Serializable;
+import java.time.LocalDateTime;
+
+/**
+ * Identity of a physical seat at one performance of a concert. Used as the primary key of SeatClaim, so the database
+ * itself rejects a second claim on the same seat.
+ */
+@Embeddable
+public class SeatClaimId implements Serializable {
+
+    public SeatClaimId() {}
+
+    public SeatClaimId(long concertId, LocalDateTime date, SeatRow row, int number) {
+        this.concertId = concertId;
+        this.date = date;
+        this.row = row;
+        this.number = number;
+    }
+
+    @Column(name = "CONCERT_ID")
+    private long concertId;
+
+    @Column(name = "CONCERT_DATE")
+    private LocalDateTime date;
+
+    @Column(name = "SEAT_ROW")
+    @Enumerated(EnumType.STRING)
+    private SeatRow row;
+
+    @Column(name = "SEAT_NUMBER")
+    private int number;
+
+    public long getConcertId() {
+        return concertId;
+    }
+
+    public LocalDateTime getDate() {
+        return date;
+    }
+
+    public SeatRow getRow() {
+        return row;
+    }
+
+    public int getNumber() {
+        return number;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof SeatClaimId))
+            return false;
+        if (obj == this)
+            return true;
+
+        SeatClaimId rhs = (SeatClaimId) obj;
+        return new EqualsBuilder().
+                append(concertId, rhs.concertId).
+                append(date, rhs.date).
+                append(row, rhs.row).
+                append(number, rhs.number).
+                isEquals();
+    }
+
+    @Override
+    public int hashCode() {
+        return new HashCodeBuilder(17, 31).
+                append(concertId).
+                append(date).
+                append(row).
+                append(number).
+                hashCode();
+    }
+}
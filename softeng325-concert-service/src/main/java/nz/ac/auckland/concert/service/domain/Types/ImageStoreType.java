@@ -0,0 +1,9 @@
+package nz.ac.auckland.concert.service.domain.Types;
+
+/**
+ * Where performer images are stored. S3 images are downloaded from Config.AWS_BUCKET into a local cache; LOCAL images
+ * are served straight from a directory, so the image path can run without network access.
+ */
+public enum ImageStoreType {
+    S3, LOCAL
+}
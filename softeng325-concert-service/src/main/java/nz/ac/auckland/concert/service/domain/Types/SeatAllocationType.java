@@ -0,0 +1,9 @@
+package nz.ac.auckland.concert.service.domain.Types;
+
+/**
+ * How seats are picked for a reservation. CONTIGUOUS seats a group side by side in one row where it can, falling back
+ * to FRAGMENTED, which fills the request from the longest runs of free seats; RANDOM starts at a random free seat.
+ */
+public enum SeatAllocationType {
+    CONTIGUOUS, FRAGMENTED, RANDOM
+}
@@ -0,0 +1,9 @@
+package nz.ac.auckland.concert.service.domain.Types;
+
+/**
+ * How authorization tokens are issued and verified. DATABASE tokens are opaque and stored in AUTHORIZATION_TOKENS;
+ * SIGNED tokens carry the username and expiry under an HMAC and are verified without any database access.
+ */
+public enum TokenMode {
+    DATABASE, SIGNED
+}
@@ -0,0 +1,62 @@
+package nz.ac.auckland.concert.service.services;
+
+import nz.ac.auckland.concert.service.util.AuthenticatedUser;
+
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.core.SecurityContext;
+import javax.ws.rs.ext.Provider;
+import java.security.Principal;
+
+/**
+ * Request filter that resolves the Authorization header of every request through the AuthenticationManager. When
+ * the token is valid the request's SecurityContext carries an AuthenticatedUser as its principal; otherwise the
+ * principal is left unset and each resource decides whether the request needed authenticating.
+ */
+@Provider
+public class AuthenticationFilter implements ContainerRequestFilter {
+
+    private final AuthenticationManager _am; // Token resolution
+
+    public AuthenticationFilter() {
+
+        _am = AuthenticationManager.instance();
+    }
+
+    @Override
+    public void filter(ContainerRequestContext requestContext) {
+        String authToken = requestContext.getHeaderString("Authorization");
+        if (authToken == null) { // Anonymous request
+            return;
+        }
+
+        AuthenticatedUser user = _am.authenticate(authToken);
+        if (user == null) { // Unknown or expired token
+            return;
+        }
+
+        SecurityContext original = requestContext.getSecurityContext();
+        requestContext.setSecurityContext(new SecurityContext() {
+
+            @Override
+            public Principal getUserPrincipal() {
+                return user;
+            }
+
+            @Override
+            public boolean isUserInRole(String role) {
+                return false;
+            }
+
+            @Override
+            public boolean isSecure() {
+                return original != null && original.isSecure();
+            }
+
+            @Override
+            public String getAuthenticationScheme() {
+                return "Token";
+            }
+        });
+    }
+}
@@ -0,0 +1,166 @@
+package nz.ac.auckland.concert.service.services;
+
+import nz.ac.auckland.concert.service.domain.Token;
+import nz.ac.auckland.concert.service.domain.Types.TokenMode;
+import nz.ac.auckland.concert.service.util.AuthenticatedUser;
+import nz.ac.auckland.concert.service.util.TokenSigner;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Singleton class that resolves authorization tokens to the users they were issued to. In DATABASE mode tokens are
+ * looked up in AUTHORIZATION_TOKENS, and resolved tokens are kept in an in-memory cache until the token expires or a
+ * cache time-to-live passes, whichever is sooner, so that repeated requests with the same token need no database
+ * access. Entries are invalidated whenever a user's token is replaced. In SIGNED mode tokens are verified from their
+ * signature alone.
+ */
+public class AuthenticationManager {
+
+    private static final Logger _logger = LoggerFactory.getLogger(AuthenticationManager.class);
+
+    private static final long CACHE_TTL_SECONDS = 60; // 1 minute
+    private static final int MAX_CACHED_TOKENS = 10000;
+
+    private static AuthenticationManager _instance = null;
+
+    private final PersistenceManager _pm; // Persistence
+
+    private final TokenMode _mode;
+    private final TokenSigner _signer; // Issues and verifies SIGNED tokens
+    private final ConcurrentMap<String, CachedToken> _tokens; // Resolved DATABASE tokens
+
+    protected AuthenticationManager() {
+
+        _pm = PersistenceManager.instance();
+        _mode = TokenMode.valueOf(Config.TOKEN_MODE.trim().toUpperCase());
+        _signer = new TokenSigner(signingKey());
+        _tokens = new ConcurrentHashMap<>();
+        _logger.info("Using " + _mode + " authorization tokens");
+    }
+
+    public static synchronized AuthenticationManager instance() {
+        if (_instance == null) {
+            _instance = new AuthenticationManager();
+        }
+        return _instance;
+    }
+
+    /**
+     * Resolves an authorization token.
+     * @param token
+     * @return The user the token was issued to, or null if the token is unknown or has expired.
+     */
+    public AuthenticatedUser authenticate(String token) {
+        LocalDateTime now = LocalDateTime.now();
+
+        if (_mode == TokenMode.SIGNED) { // Self-contained, nothing to look up or cache
+            AuthenticatedUser user = _signer.verify(token);
+            return user == null || user.isExpired(now) ? null : user;
+        }
+
+        CachedToken cached = _tokens.get(token);
+        if (cached != null && now.isBefore(cached._cachedUntil)) {
+            return cached._user;
+        }
+
+        AuthenticatedUser user = load(token);
+        if (user == null || user.isExpired(now)) {
+            _tokens.remove(token);
+            return null;
+        }
+
+        if (_tokens.size() >= MAX_CACHED_TOKENS) {
+            evictExpired(now);
+        }
+        LocalDateTime cachedUntil = now.plusSeconds(CACHE_TTL_SECONDS);
+        _tokens.put(token, new CachedToken(user, user.getExpiry().isBefore(cachedUntil) ? user.getExpiry() : cachedUntil));
+        return user;
+    }
+
+    public TokenMode getTokenMode() {
+        return _mode;
+    }
+
+    /**
+     * Issues a SIGNED token for a user. Such tokens are not stored and remain valid until their expiry.
+     */
+    public String signToken(String username, LocalDateTime expiry) {
+        return _signer.sign(username, expiry);
+    }
+
+    /**
+     * Drops every cached token issued to a user, e.g. when their token has been replaced.
+     */
+    public void invalidateUser(String username) {
+        _tokens.values().removeIf(cached -> cached._user.getName().equals(username));
+    }
+
+    /**
+     * Drops every cached token.
+     */
+    public void clear() {
+        _tokens.clear();
+    }
+
+
+    // Private methods
+
+
+    private AuthenticatedUser load(String token) {
+        EntityManager em = _pm.createEntityManager();
+
+        try {
+            TypedQuery<Token> tokenQuery = em.createQuery("SELECT t FROM Token t JOIN FETCH t.user WHERE t.token = :token", Token.class);
+            tokenQuery.setParameter("token", token);
+            List<Token> tokens = tokenQuery.getResultList();
+            if (tokens.isEmpty()) {
+                return null;
+            }
+
+            Token found = tokens.get(0);
+            return new AuthenticatedUser(found.getUser().getUsername(), found.getToken(), found.getExpiry());
+        } finally {
+            em.close();
+        }
+    }
+
+    private static byte[] signingKey() {
+        if (Config.TOKEN_SIGNING_KEY != null) {
+            return Config.TOKEN_SIGNING_KEY.getBytes(StandardCharsets.UTF_8);
+        }
+
+        byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        return key;
+    }
+
+    private void evictExpired(LocalDateTime now) {
+        int size = _tokens.size();
+        _tokens.values().removeIf(cached -> !now.isBefore(cached._cachedUntil));
+        if (_tokens.size() >= MAX_CACHED_TOKENS) { // Everything is still live, make room anyway
+            _tokens.clear();
+        }
+        _logger.info("Evicted (" + (size - _tokens.size()) + ") cached authorization tokens");
+    }
+
+
+    private static class CachedToken {
+
+        private final AuthenticatedUser _user;
+        private final LocalDateTime _cachedUntil;
+
+        private CachedToken(AuthenticatedUser user, LocalDateTime cachedUntil) {
+            _user = user;
+            _cachedUntil = cachedUntil;
+        }
+    }
+}
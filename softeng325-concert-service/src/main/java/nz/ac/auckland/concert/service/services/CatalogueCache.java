@@ -0,0 +1,164 @@
+package nz.ac.auckland.concert.service.services;
+
+import nz.ac.auckland.concert.common.dto.ConcertDTO;
+import nz.ac.auckland.concert.common.dto.PerformerDTO;
+import nz.ac.auckland.concert.service.util.LruCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Singleton class that caches the concert and performer catalogue as mapped DTOs, so that catalogue reads are served
+ * from memory rather than re-reading entities and their collections from the database. Single entities are cached by
+ * id and result pages by the query that produced them. Any write to the catalogue invalidates the whole cache, as a
+ * new concert also changes the concerts listed for its performers.
+ *
+ * The cache also records when the catalogue last changed, which resources hand out as the Last-Modified date of
+ * catalogue reads. Entity tags are derived from the content itself, see CatalogueTags.
+ */
+public class CatalogueCache {
+
+    private static final Logger _logger = LoggerFactory.getLogger(CatalogueCache.class);
+
+    private static final int MAX_CACHED_ENTITIES = 1000;
+    private static final int MAX_CACHED_PAGES = 200;
+
+    private static CatalogueCache _instance = null;
+
+    private final LruCache<Long, ConcertDTO> _concerts;
+    private final LruCache<Long, PerformerDTO> _performers;
+    private final LruCache<String, List<ConcertDTO>> _concertPages;
+    private final LruCache<String, List<PerformerDTO>> _performerPages;
+
+    private long _generation = 0; // Incremented by every invalidation, guarded by this
+    private Date _lastModified; // Guarded by this
+
+    protected CatalogueCache() {
+
+        _concerts = new LruCache<>(MAX_CACHED_ENTITIES);
+        _performers = new LruCache<>(MAX_CACHED_ENTITIES);
+        _concertPages = new LruCache<>(MAX_CACHED_PAGES);
+        _performerPages = new LruCache<>(MAX_CACHED_PAGES);
+        _lastModified = now();
+    }
+
+    public static synchronized CatalogueCache instance() {
+        if (_instance == null) {
+            _instance = new CatalogueCache();
+        }
+        return _instance;
+    }
+
+    /**
+     * Returns a concert, loading and caching it on a miss.
+     * @param id
+     * @param loader reads the concert from the database, returning null if there is no such concert.
+     * @return ConcertDTO, or null if the concert does not exist.
+     */
+    public ConcertDTO getConcert(long id, Supplier<ConcertDTO> loader) {
+        return readThrough(_concerts, id, loader);
+    }
+
+    /**
+     * Returns a performer, loading and caching it on a miss.
+     * @param id
+     * @param loader reads the performer from the database, returning null if there is no such performer.
+     * @return PerformerDTO, or null if the performer does not exist.
+     */
+    public PerformerDTO getPerformer(long id, Supplier<PerformerDTO> loader) {
+        return readThrough(_performers, id, loader);
+    }
+
+    /**
+     * Returns a page of concerts, loading and caching it on a miss.
+     * @param page identifies the page, e.g. its cursor and size.
+     * @param loader
+     * @return Unmodifiable list of concerts.
+     */
+    public List<ConcertDTO> getConcertPage(String page, Supplier<List<ConcertDTO>> loader) {
+        return readThrough(_concertPages, page, () -> Collections.unmodifiableList(loader.get()));
+    }
+
+    /**
+     * Returns a page of performers, loading and caching it on a miss.
+     * @param page identifies the page, e.g. its cursor and size.
+     * @param loader
+     * @return Unmodifiable list of performers.
+     */
+    public List<PerformerDTO> getPerformerPage(String page, Supplier<List<PerformerDTO>> loader) {
+        return readThrough(_performerPages, page, () -> Collections.unmodifiableList(loader.get()));
+    }
+
+    /**
+     * Drops everything cached. Called after every committed change to concerts, performers or images.
+     */
+    public synchronized void invalidate() {
+        _generation++;
+        _lastModified = now();
+        _concerts.clear();
+        _performers.clear();
+        _concertPages.clear();
+        _performerPages.clear();
+        _logger.info("Invalidated catalogue cache");
+    }
+
+    /**
+     * Returns when the catalogue last changed, to the second.
+     */
+    public synchronized Date getLastModified() {
+        return _lastModified;
+    }
+
+    public long getHitCount() {
+        return _concerts.getHitCount() + _performers.getHitCount() + _concertPages.getHitCount() + _performerPages.getHitCount();
+    }
+
+    public long getMissCount() {
+        return _concerts.getMissCount() + _performers.getMissCount() + _concertPages.getMissCount() + _performerPages.getMissCount();
+    }
+
+    public long getEvictionCount() {
+        return _concerts.getEvictionCount() + _performers.getEvictionCount() + _concertPages.getEvictionCount() +
+                _performerPages.getEvictionCount();
+    }
+
+    public int size() {
+        return _concerts.size() + _performers.size() + _concertPages.size() + _performerPages.size();
+    }
+
+
+    // Private methods
+
+
+    private static Date now() {
+        return new Date(System.currentTimeMillis() / 1000 * 1000); // HTTP dates carry whole seconds
+    }
+
+    private <K, V> V readThrough(LruCache<K, V> cache, K key, Supplier<V> loader) {
+        V value = cache.get(key);
+        if (value != null) {
+            return value;
+        }
+
+        long generation;
+        synchronized (this) {
+            generation = _generation;
+        }
+
+        value = loader.get();
+        if (value != null) {
+            store(cache, key, value, generation);
+        }
+        return value;
+    }
+
+    private synchronized <K, V> void store(LruCache<K, V> cache, K key, V value, long generation) {
+        if (generation == _generation) { // Skip values read before a write that has since invalidated the cache
+            cache.put(key, value);
+        }
+    }
+}
@@ -25,18 +25,32 @@ public class ConcertApplication extends Application {
             em.createQuery("DELETE FROM CreditCard").executeUpdate();
             em.createQuery("DELETE FROM SeatReservation").executeUpdate();
             em.createQuery("DELETE FROM Reservation").executeUpdate();
+            em.createQuery("DELETE FROM SeatClaim").executeUpdate();
             em.getTransaction().commit();
         } finally {
             em.close();
         }
 
+        // In-memory seat inventories must not outlive the reservations that were just deleted
+        SeatInventoryManager.instance().clear();
+        AuthenticationManager.instance().clear(); // Likewise for cached authorization tokens
+        CatalogueCache.instance().invalidate();
+        ReservationReaper.instance().start();
+
         _singletons.add(PersistenceManager.instance());
         _singletons.add(SubscriptionManager.instance());
+        _singletons.add(SeatInventoryManager.instance());
+        _singletons.add(ReservationReaper.instance());
+        _singletons.add(AuthenticationManager.instance());
+        _singletons.add(CatalogueCache.instance());
+        _singletons.add(ImageManager.instance());
+        _singletons.add(new AuthenticationFilter());
         _classes.add(ConcertResource.class);
         _classes.add(PerformerResource.class);
         _classes.add(UserResource.class);
         _classes.add(ReserveResource.class);
         _classes.add(ImageResource.class);
+        _classes.add(StatisticsResource.class);
     }
 
     @Override
@@ -5,9 +5,12 @@ import nz.ac.auckland.concert.common.message.Messages;
 import nz.ac.auckland.concert.service.domain.Concert;
 import nz.ac.auckland.concert.service.domain.Mappers.ConcertMapper;
 import nz.ac.auckland.concert.service.domain.Performer;
-import nz.ac.auckland.concert.service.domain.Token;
 import nz.ac.auckland.concert.service.domain.Types.SubscriptionType;
 import nz.ac.auckland.concert.service.domain.User;
+import nz.ac.auckland.concert.service.util.CatalogueTags;
+import nz.ac.auckland.concert.service.util.EventStream;
+import nz.ac.auckland.concert.service.util.PageCursor;
+import nz.ac.auckland.concert.service.util.XmlFragmentStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -20,8 +23,9 @@ import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.*;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.time.LocalDateTime;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
 import java.util.List;
 import java.util.UUID;
 import java.util.stream.Collectors;
@@ -31,53 +35,73 @@ public class ConcertResource {
 
     private static final Logger _logger = LoggerFactory.getLogger(ConcertResource.class);
 
+    private static final int EXPORT_BATCH_SIZE = 100;
+    private static final CacheControl REVALIDATE = CacheControl.valueOf("no-cache"); // Cacheable, but check the tag first
+
     @Context // Information about the service hosted URI
     private static UriInfo _uri;
 
+    @Context // Caller resolved from the authorization token by AuthenticationFilter
+    private SecurityContext _securityContext;
+
     private final PersistenceManager _pm; // Persistence
     private final SubscriptionManager _sm; // Subscription management
+    private final CatalogueCache _cc; // Mapped concerts and performers
 
     public ConcertResource() {
 
         _pm = PersistenceManager.instance();
         _sm = SubscriptionManager.instance();
+        _cc = CatalogueCache.instance();
     }
 
     /**
      * Retrieves a single concert given an id
      * @param userAgent
      * @param id
-     * @return ConcertDTO
+     * @param request carries the client's validators, if any.
+     * @return ConcertDTO, or 304 if the client's copy is still current
      */
     @GET
     @Path("/{id}")
     @Produces(MediaType.APPLICATION_XML)
     public Response getConcert(
             @HeaderParam("user-agent") String userAgent,
-            @PathParam("id") long id) {
-
-        EntityManager em = _pm.createEntityManager();
-
-        try {
-            Concert concert = em.find(Concert.class, id);
-            ConcertDTO returnConcert = ConcertMapper.toDto(concert);
+            @PathParam("id") long id,
+            @Context Request request) {
+
+        Date lastModified = _cc.getLastModified(); // Taken before reading, so it never claims newer data
+        ConcertDTO returnConcert = _cc.getConcert(id, () -> loadConcert(id));
+        if (returnConcert == null) { // Checked first, so a stale tag never vouches for a missing concert
+            _logger.info("Denied user agent: " + userAgent + "; No concert with id: " + id);
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
 
-            return Response
-                    .status(Response.Status.OK)
-                    .entity(returnConcert)
-                    .build();
-        } finally {
-            em.close();
+        EntityTag tag = CatalogueTags.ofConcert(returnConcert);
+        Response.ResponseBuilder notModified = request.evaluatePreconditions(tag); // The tag alone, as several changes can share a second
+        if (notModified != null) { // Client already holds this version
+            return notModified.tag(tag).cacheControl(REVALIDATE).build();
         }
+
+        return Response
+                .status(Response.Status.OK)
+                .entity(returnConcert)
+                .tag(tag)
+                .lastModified(lastModified)
+                .cacheControl(REVALIDATE)
+                .build();
     }
 
     /**
      * This method allows for multiple concerts to be retrieved in batches up to the clients discretion.
-     * No authentication is required here.
+     * No authentication is required here. Pages are addressed either by an opaque cursor, where the returned URI
+     * carries the cursor of the next page, or by offset for compatibility with older clients.
      * @param userAgent
      * @param start
      * @param size
-     * @return list of concerts with uri for next batch
+     * @param cursor empty for the first page, else the cursor from the previous page's URI.
+     * @param request carries the client's validators, if any.
+     * @return list of concerts with uri for next batch, or 304 if the client's copy is still current
      */
     @GET
     @Path("/")
@@ -85,31 +109,81 @@ public class ConcertResource {
     public Response getConcerts(
             @HeaderParam("user-agent") String userAgent,
             @QueryParam("start") int start,
-            @QueryParam("size") int size) {
+            @QueryParam("size") int size,
+            @QueryParam("cursor") String cursor,
+            @Context Request request) {
 
-        EntityManager em = _pm.createEntityManager();
+        if (start < 0 || size < 0) { // Checked up front, so errors from loading the page are never mistaken for the client's
+            _logger.info("Denied user agent: " + userAgent + "; Illegal page start: " + start + " and size: " + size);
+            return Response.status(Response.Status.BAD_REQUEST).entity(Messages.ILLEGAL_PAGE_RANGE).build();
+        }
 
+        long afterId;
         try {
-            TypedQuery<Concert> q = em.createQuery("SELECT c FROM Concert c", Concert.class);
-            List<Concert> concerts = q.setFirstResult(start).setMaxResults(size).getResultList();
+            afterId = cursor != null ? PageCursor.decode(cursor) : PageCursor.FIRST;
+        } catch (IllegalArgumentException e) {
+            _logger.info("Denied user agent: " + userAgent + "; Malformed page cursor: " + cursor);
+            return Response.status(Response.Status.BAD_REQUEST).entity(Messages.MALFORMED_PAGE_CURSOR).build();
+        }
+
+        Date lastModified = _cc.getLastModified(); // Taken before reading, so it never claims newer data
+
+        try {
+            List<ConcertDTO> concertDTOs;
+            String next;
+            if (cursor != null) { // Keyset page: seek past the last id of the previous page
+                concertDTOs = _cc.getConcertPage("cursor=" + cursor + "&size=" + size, () -> loadConcertsAfter(afterId, size));
+                String nextCursor = concertDTOs.isEmpty() ? cursor : PageCursor.encode(concertDTOs.get(concertDTOs.size() - 1).getId());
+                next = String.format("concerts?cursor=%s&size=%d", nextCursor, size);
+            } else {
+                concertDTOs = _cc.getConcertPage("start=" + start + "&size=" + size, () -> loadConcerts(start, size));
+                next = String.format("concerts?start=%d&size=%d", start + size, size);
+            }
+
+            EntityTag tag = CatalogueTags.ofConcerts(concertDTOs, next);
+            Response.ResponseBuilder notModified = request.evaluatePreconditions(tag); // The tag alone, as several changes can share a second
+            if (notModified != null) { // Client already holds this version of the page, including its next page URI
+                return notModified.tag(tag).cacheControl(REVALIDATE).build();
+            }
 
-            List<ConcertDTO> concertDTOs = concerts.stream().map(ConcertMapper::toDto).collect(Collectors.toList());
             GenericEntity<List<ConcertDTO>> entity = new GenericEntity<List<ConcertDTO>>(concertDTOs) {};
-            _logger.info("Retrieved (" + concerts.size() + ") concerts; send to user agent: " + userAgent);
+            _logger.info("Retrieved (" + concertDTOs.size() + ") concerts; send to user agent: " + userAgent);
 
             return Response
                     .status(Response.Status.OK)
-                    .location(new URI(_uri.getBaseUri() + String.format("concerts?start=%d&size=%d", start + size, size))) // next batch of concerts
+                    .location(new URI(_uri.getBaseUri() + next)) // next batch of concerts
                     .entity(entity)
+                    .tag(tag)
+                    .lastModified(lastModified)
+                    .cacheControl(REVALIDATE)
                     .build();
         } catch (URISyntaxException e) {
             _logger.info("Denied user agent: " + userAgent + "; could not convert return URI");
             return Response.status(Response.Status.INTERNAL_SERVER_ERROR).build();
-        } finally {
-            em.close();
         }
     }
 
+    /**
+     * Streams every concert in a single response, enclosed in a concerts element. Concerts are read and written in
+     * batches, so the response starts straight away and the full list is never held in memory.
+     * No authentication is required here.
+     * @param userAgent
+     * @return all concerts
+     */
+    @GET
+    @Path("/export")
+    @Produces(MediaType.APPLICATION_XML)
+    public Response exportConcerts(
+            @HeaderParam("user-agent") String userAgent) {
+
+        _logger.info("Exporting concerts to user agent: " + userAgent);
+        return Response
+                .status(Response.Status.OK)
+                .entity(new XmlFragmentStream<>(ConcertDTO.class, "concerts", EXPORT_BATCH_SIZE,
+                        this::loadConcertsAfter, concert -> concert.getId()))
+                .build();
+    }
+
     /**
      * Creates a new concert entity in the database of the service. Authentication is required and can be
      * provided through an authorization token.
@@ -136,21 +210,22 @@ public class ConcertResource {
             return Response.status(Response.Status.BAD_REQUEST).entity(Messages.RESERVATION_REQUEST_WITH_MISSING_FIELDS).build(); // Bad request
         }
 
+        if (_securityContext.getUserPrincipal() == null) { // If token wasn't found or is expired return unauthorized
+            _logger.info("Denied user agent : " + userAgent + "; With expired/invalid authentication token: " + authToken);
+            return Response.status(Response.Status.UNAUTHORIZED).entity(Messages.BAD_AUTHENTICATON_TOKEN).build();
+        }
+
         EntityManager em = _pm.createEntityManager();
 
         try {
             EntityTransaction tx = em.getTransaction();
             tx.begin();
 
-            if (!tokenIsValid(authToken, em)) { // If token wasn't found or is expired return unauthorized
-                _logger.info("Denied user agent : " + userAgent + "; With expired/invalid authentication token: " + authToken);
-                return Response.status(Response.Status.UNAUTHORIZED).entity(Messages.BAD_AUTHENTICATON_TOKEN).build();
-            }
-
             Concert newConcert = ConcertMapper.toDomainModel(concertDTO);
             newConcert = em.merge(newConcert);
 
             tx.commit();
+            _cc.invalidate(); // The concert is also listed under each of its performers
             _logger.info("Successfully created new concert with id: " + newConcert.getId() + ", name: " + newConcert.getTitle() +
                     " and performers: " + Arrays.toString(newConcert.getPerformers().stream().map(Performer::getName).toArray()));
 
@@ -194,18 +269,74 @@ public class ConcertResource {
         _logger.info("Subscriber added for new concerts");
     }
 
+    /**
+     * Streams notifications of new concerts as server-sent events over a single connection that stays open, instead of
+     * one long-poll per notification. A client that reconnects with Last-Event-ID is first sent the notifications it
+     * missed.
+     * @param userAgent
+     * @param authToken
+     * @param lastEventId
+     */
+    @GET
+    @Path("/notifications")
+    @Produces(EventStream.MEDIA_TYPE)
+    public Response streamNewConcerts(
+            @HeaderParam("user-agent") String userAgent,
+            @HeaderParam("Authorization") String authToken,
+            @HeaderParam("Last-Event-ID") String lastEventId) {
+
+        if (authToken == null) { // User has no access token
+            _logger.info("Denied user agent: " + userAgent + "; No authentication token identified.");
+            return Response.status(Response.Status.FORBIDDEN).entity(Messages.UNAUTHENTICATED_REQUEST).build();
+        }
+
+        EventStream stream = _sm.openStream(SubscriptionType.CONCERT, lastEventId);
+        if (stream == null) { // Every stream holds a container thread, so their number is capped
+            _logger.info("Denied user agent: " + userAgent + "; Too many event streams open");
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE).entity(Messages.TOO_MANY_EVENT_STREAMS)
+                    .header(HttpHeaders.RETRY_AFTER, EventStream.BUSY_RETRY_SECONDS).build();
+        }
+        _logger.info("Event stream opened for new concerts");
+        return Response.ok(stream).cacheControl(CacheControl.valueOf("no-store")).build();
+    }
+
 
     // Private methods
 
 
-    private boolean tokenIsValid(String authToken, EntityManager em) {
+    private ConcertDTO loadConcert(long id) {
+        EntityManager em = _pm.createEntityManager();
+
+        try {
+            List<Concert> concerts = FetchPlans.findConcerts(em, Collections.singletonList(id));
+            return concerts.isEmpty() ? null : ConcertMapper.toDto(concerts.get(0));
+        } finally {
+            em.close();
+        }
+    }
+
+    private List<ConcertDTO> loadConcerts(int start, int size) {
+        EntityManager em = _pm.createEntityManager();
+
+        try {
+            TypedQuery<Long> q = em.createQuery("SELECT c.id FROM Concert c ORDER BY c.id", Long.class);
+            List<Long> ids = q.setFirstResult(start).setMaxResults(size).getResultList();
+            return FetchPlans.findConcerts(em, ids).stream().map(ConcertMapper::toDto).collect(Collectors.toList());
+        } finally {
+            em.close();
+        }
+    }
 
-        // Retrieve corresponding token form the database
-        TypedQuery<Token> tokenQuery = em.createQuery("SELECT t FROM Token t WHERE t.token = :token", Token.class);
-        tokenQuery.setParameter("token", authToken);
-        Token token = tokenQuery.getSingleResult();
+    private List<ConcertDTO> loadConcertsAfter(long afterId, int size) {
+        EntityManager em = _pm.createEntityManager();
 
-        // True if token isn't null and its expiry time is after the current time
-        return token != null && !LocalDateTime.now().isAfter(token.getExpiry());
+        try {
+            TypedQuery<Long> q = em.createQuery("SELECT c.id FROM Concert c WHERE c.id > :afterId ORDER BY c.id", Long.class);
+            q.setParameter("afterId", afterId);
+            List<Long> ids = q.setMaxResults(size).getResultList();
+            return FetchPlans.findConcerts(em, ids).stream().map(ConcertMapper::toDto).collect(Collectors.toList());
+        } finally {
+            em.close();
+        }
     }
-}
\ No newline at end of file
+}
@@ -9,4 +9,28 @@ public class Config {
     // Name of the S3 bucket that stores images.
     public  static final String AWS_BUCKET = "concert2.aucklanduni.ac.nz";
 
+    // Authorization token mode, DATABASE or SIGNED (see TokenMode).
+    public static final String TOKEN_MODE = System.getProperty("concert.token.mode", "DATABASE");
+
+    // Key for SIGNED tokens. Service instances that share tokens must share this key; when unset a random key is
+    // generated at start-up, so tokens are only valid on the instance that issued them.
+    public static final String TOKEN_SIGNING_KEY = System.getProperty("concert.token.key");
+
+    // Where performer images are stored, S3 or LOCAL (see ImageStoreType), and the directory LOCAL images are read from.
+    public static final String IMAGE_STORE = System.getProperty("concert.image.store", "S3");
+    public static final String IMAGE_STORE_DIRECTORY = System.getProperty("concert.image.store.dir", "images");
+
+    // Local directory that caches downloaded S3 images, and the most image bytes it may hold.
+    public static final String IMAGE_CACHE_DIRECTORY = System.getProperty("concert.image.cache.dir",
+            System.getProperty("java.io.tmpdir") + "/concert-images");
+    public static final long IMAGE_CACHE_MAX_BYTES = Long.getLong("concert.image.cache.bytes", 64L * 1024 * 1024);
+
+    // Most bytes of resized image variants cached, in the "variants" directory under the image cache directory.
+    public static final long IMAGE_VARIANT_CACHE_MAX_BYTES = Long.getLong("concert.image.variants.bytes", 16L * 1024 * 1024);
+
+    // How seats are picked for reservations, CONTIGUOUS, FRAGMENTED or RANDOM (see SeatAllocationType), and the
+    // concerts that use another strategy, e.g. "1=RANDOM,7=FRAGMENTED".
+    public static final String SEAT_ALLOCATION = System.getProperty("concert.seat.allocation", "CONTIGUOUS");
+    public static final String SEAT_ALLOCATION_CONCERTS = System.getProperty("concert.seat.allocation.concerts", "");
+
 }
@@ -0,0 +1,59 @@
+package nz.ac.auckland.concert.service.services;
+
+import nz.ac.auckland.concert.service.domain.Booking;
+import nz.ac.auckland.concert.service.domain.Concert;
+import nz.ac.auckland.concert.service.domain.Performer;
+import org.hibernate.jpa.QueryHints;
+
+import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Loads pages of entities together with everything their mapper reads, using the entity graphs declared on each
+ * entity. A page is found in two steps: the caller selects the ids of the page with whatever limit or offset it
+ * needs, and the entities are then fetched by id in a single joined query. Limits are never applied to the joined
+ * query itself, as Hibernate can only paginate collection fetches in memory.
+ */
+public class FetchPlans {
+
+    /**
+     * Returns concerts with their dates, prices and performers loaded, in id order.
+     */
+    public static List<Concert> findConcerts(EntityManager em, List<Long> ids) {
+        return findWithGraph(em, "SELECT DISTINCT c FROM Concert c WHERE c.id IN :ids ORDER BY c.id",
+                Concert.class, Concert.CATALOGUE_GRAPH, ids);
+    }
+
+    /**
+     * Returns performers with their concerts loaded, in id order.
+     */
+    public static List<Performer> findPerformers(EntityManager em, List<Long> ids) {
+        return findWithGraph(em, "SELECT DISTINCT p FROM Performer p WHERE p.id IN :ids ORDER BY p.id",
+                Performer.class, Performer.CATALOGUE_GRAPH, ids);
+    }
+
+    /**
+     * Returns bookings with their reservation, its concert and its seats loaded, in id order.
+     */
+    public static List<Booking> findBookings(EntityManager em, List<Long> ids) {
+        return findWithGraph(em, "SELECT DISTINCT b FROM Booking b WHERE b.id IN :ids ORDER BY b.id",
+                Booking.class, Booking.SUMMARY_GRAPH, ids);
+    }
+
+
+    // Private methods
+
+
+    private static <T> List<T> findWithGraph(EntityManager em, String query, Class<T> type, String graph, List<Long> ids) {
+        if (ids.isEmpty()) { // An empty IN list is not valid SQL
+            return Collections.emptyList();
+        }
+
+        TypedQuery<T> q = em.createQuery(query, type);
+        q.setParameter("ids", ids);
+        q.setHint(QueryHints.HINT_LOADGRAPH, em.getEntityGraph(graph));
+        return q.getResultList();
+    }
+}
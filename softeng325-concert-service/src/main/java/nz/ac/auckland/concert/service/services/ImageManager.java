@@ -0,0 +1,192 @@
+package nz.ac.auckland.concert.service.services;
+
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import nz.ac.auckland.concert.service.domain.Types.ImageStoreType;
+import nz.ac.auckland.concert.service.util.DiskLruCache;
+import nz.ac.auckland.concert.service.util.ImageStore;
+import nz.ac.auckland.concert.service.util.ImageVariants;
+import nz.ac.auckland.concert.service.util.LocalImageStore;
+import nz.ac.auckland.concert.service.util.S3ImageStore;
+import nz.ac.auckland.concert.service.util.StoredImage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+
+/**
+ * Singleton class that provides performer images from the image store selected by Config.IMAGE_STORE. S3 images are
+ * downloaded through a single client shared by all requests, and kept in a size bounded disk cache, so that a popular
+ * image is downloaded once and served from local storage afterwards. The cache evicts the least recently used images
+ * once it holds more than Config.IMAGE_CACHE_MAX_BYTES. Concurrent requests for an image that is not cached yet
+ * share one download. LOCAL images are served from Config.IMAGE_STORE_DIRECTORY.
+ *
+ * Smaller variants of an image are rendered on request, on a small pool of worker threads, and cached separately
+ * from the originals, so each variant is only rendered once per version of its image. A cached variant is served
+ * without opening, and so possibly downloading, the original again.
+ */
+public class ImageManager {
+
+    private static final Logger _logger = LoggerFactory.getLogger(ImageManager.class);
+
+    public static final int MAX_VARIANT_SIZE = 1024; // Pixels along the longest side
+
+    private static final int VARIANT_WORKERS = 2;
+    private static final int VARIANT_QUEUE_CAPACITY = 32;
+
+    private static ImageManager _instance = null;
+
+    private final ImageStore _store;
+    private final S3ImageStore _remote; // Same as _store for S3, null for a LOCAL store
+    private final ImageVariants _variants;
+
+    protected ImageManager() {
+
+        ImageStoreType type = ImageStoreType.valueOf(Config.IMAGE_STORE.trim().toUpperCase());
+        if (type == ImageStoreType.LOCAL) {
+            _remote = null;
+            _store = new LocalImageStore(Paths.get(Config.IMAGE_STORE_DIRECTORY));
+            _logger.info("Serving images from " + Paths.get(Config.IMAGE_STORE_DIRECTORY).toAbsolutePath());
+        } else {
+            AmazonS3 s3 = AmazonS3ClientBuilder // Thread safe, and costly to build per request
+                    .standard()
+                    .withRegion(Regions.AP_SOUTHEAST_2)
+                    .withCredentials(new AWSStaticCredentialsProvider(
+                            new BasicAWSCredentials(Config.AWS_ACCESS_KEY_ID, Config.AWS_SECRET_ACCESS_KEY)))
+                    .build();
+            DiskLruCache cache;
+            try {
+                cache = new DiskLruCache(Paths.get(Config.IMAGE_CACHE_DIRECTORY), Config.IMAGE_CACHE_MAX_BYTES);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not create image cache in " + Config.IMAGE_CACHE_DIRECTORY, e);
+            }
+            _remote = new S3ImageStore(s3, Config.AWS_BUCKET, cache);
+            _store = _remote;
+            _logger.info("Caching up to (" + Config.IMAGE_CACHE_MAX_BYTES + ") image bytes in " + Config.IMAGE_CACHE_DIRECTORY);
+        }
+
+        try {
+            DiskLruCache variants = new DiskLruCache(Paths.get(Config.IMAGE_CACHE_DIRECTORY, "variants"), Config.IMAGE_VARIANT_CACHE_MAX_BYTES);
+            _variants = new ImageVariants(variants, VARIANT_WORKERS, VARIANT_QUEUE_CAPACITY);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not create image variant cache in " + Config.IMAGE_CACHE_DIRECTORY, e);
+        }
+    }
+
+    public static synchronized ImageManager instance() {
+        if (_instance == null) {
+            _instance = new ImageManager();
+        }
+        return _instance;
+    }
+
+    /**
+     * Opens an image, downloading it into the cache first if the store is remote and the image is not cached yet.
+     * @param imageName
+     * @return the image, which the caller must close.
+     * @throws java.nio.file.NoSuchFileException if there is no such image.
+     */
+    public StoredImage getImage(String imageName) throws IOException {
+        return _store.open(imageName);
+    }
+
+    /**
+     * Opens a variant of an image that fits within a size, rendering it if it has not been rendered yet.
+     * @param imageName
+     * @param size longest side of the variant in pixels, between 1 and MAX_VARIANT_SIZE.
+     * @return the variant, which the caller must close.
+     * @throws java.nio.file.NoSuchFileException if there is no such image.
+     */
+    public StoredImage getImage(String imageName, int size) throws IOException {
+        StoredImage variant = _variants.openCached(imageName, size);
+        if (variant != null) {
+            return variant;
+        }
+        try (StoredImage original = _store.open(imageName)) {
+            return _variants.open(imageName, original, size);
+        }
+    }
+
+    /**
+     * Drops a cached image, so that it is downloaded again the next time it is requested. Called when an image is
+     * (re)assigned to a performer, as it may have been replaced in S3.
+     */
+    public void evict(String imageName) {
+        _variants.forget(imageName); // Before the original, so no variant of the old version is served afterwards
+        _store.evict(imageName);
+    }
+
+    public void clear() {
+        if (_remote != null) {
+            _remote.getCache().clear();
+        }
+        _variants.getCache().clear();
+    }
+
+    public long getHitCount() {
+        return _remote == null ? 0 : _remote.getCache().getHitCount();
+    }
+
+    public long getMissCount() {
+        return _remote == null ? 0 : _remote.getCache().getMissCount();
+    }
+
+    public long getEvictionCount() {
+        return _remote == null ? 0 : _remote.getCache().getEvictionCount();
+    }
+
+    /**
+     * Returns the number of images downloaded from S3.
+     */
+    public long getDownloadCount() {
+        return _remote == null ? 0 : _remote.getDownloadCount();
+    }
+
+    /**
+     * Returns the number of requests that shared a download already in flight instead of starting their own.
+     */
+    public long getCoalescedDownloadCount() {
+        return _remote == null ? 0 : _remote.getCoalescedDownloadCount();
+    }
+
+    /**
+     * Returns the number of bytes of downloaded image data cached on disk.
+     */
+    public long getCachedBytes() {
+        return _remote == null ? 0 : _remote.getCache().getBytes();
+    }
+
+    /**
+     * Returns the number of image variants rendered.
+     */
+    public long getVariantRenderCount() {
+        return _variants.getRenderCount();
+    }
+
+    /**
+     * Returns the number of variant requests served from the variant cache.
+     */
+    public long getVariantHitCount() {
+        return _variants.getCache().getHitCount();
+    }
+
+    /**
+     * Returns the number of variant renders refused because too many were waiting.
+     */
+    public long getVariantRejectedCount() {
+        return _variants.getRejectedCount();
+    }
+
+    public int getVariantCount() {
+        return _variants.getCache().size();
+    }
+
+    public int size() {
+        return _remote == null ? 0 : _remote.getCache().size();
+    }
+}
@@ -1,25 +1,18 @@
 package nz.ac.auckland.concert.service.services;
 
-import com.amazonaws.auth.AWSStaticCredentialsProvider;
-import com.amazonaws.auth.BasicAWSCredentials;
-import com.amazonaws.regions.Regions;
-import com.amazonaws.services.s3.AmazonS3;
-import com.amazonaws.services.s3.AmazonS3ClientBuilder;
-import com.amazonaws.services.s3.model.AmazonS3Exception;
-import com.amazonaws.services.s3.model.S3Object;
-import com.amazonaws.util.IOUtils;
 import nz.ac.auckland.concert.common.dto.PerformerDTO;
 import nz.ac.auckland.concert.common.message.Messages;
 import nz.ac.auckland.concert.service.domain.Mappers.PerformerMapper;
 import nz.ac.auckland.concert.service.domain.Performer;
-import nz.ac.auckland.concert.service.domain.Token;
 import nz.ac.auckland.concert.service.domain.Types.SubscriptionType;
+import nz.ac.auckland.concert.service.util.ByteRange;
+import nz.ac.auckland.concert.service.util.EventStream;
+import nz.ac.auckland.concert.service.util.StoredImage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.persistence.EntityManager;
 import javax.persistence.EntityTransaction;
-import javax.persistence.TypedQuery;
 import javax.ws.rs.*;
 import javax.ws.rs.container.AsyncResponse;
 import javax.ws.rs.container.Suspended;
@@ -27,63 +20,121 @@ import javax.ws.rs.core.*;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.time.LocalDateTime;
+import java.nio.channels.Channels;
+import java.nio.file.NoSuchFileException;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Date;
 
 @Path("/images")
 public class ImageResource {
 
-    // AWS S3 access credentials for concert images.
-    protected static final String AWS_ACCESS_KEY_ID = Config.AWS_ACCESS_KEY_ID;
-    protected static final String AWS_SECRET_ACCESS_KEY = Config.AWS_SECRET_ACCESS_KEY;
-
-    // Name of the S3 bucket that stores images.
-    protected static final String AWS_BUCKET = Config.AWS_BUCKET;
-
     private static final Logger _logger = LoggerFactory.getLogger(ImageResource.class);
 
     @Context // Information about the service hosted URI
     private static UriInfo _uri;
 
+    @Context // Caller resolved from the authorization token by AuthenticationFilter
+    private SecurityContext _securityContext;
+
     private final PersistenceManager _pm; // Persistence
     private final SubscriptionManager _sm; // Subscription management
+    private final CatalogueCache _cc; // Mapped concerts and performers
+    private final ImageManager _im; // Cached images
 
     public ImageResource() {
 
         _pm = PersistenceManager.instance();
         _sm = SubscriptionManager.instance();
+        _cc = CatalogueCache.instance();
+        _im = ImageManager.instance();
     }
 
+    /**
+     * Downloads an image. Images are served from local files, either the image cache or a local image store, and
+     * only downloaded from S3 the first time they are requested. The file is handed to the response without copying
+     * it through the heap. Images are tagged with the entity tag of their stored version, so a client that already
+     * holds the current version of an image is answered with 304 without transferring the image.
+     *
+     * A size asks for a variant of the image scaled down to fit within that many pixels, which is rendered once and
+     * cached, so clients that only show a small image transfer and decode far fewer bytes.
+     *
+     * A single byte range may be requested, e.g. to resume an interrupted download, and is answered with 206 and
+     * read from its position in the file. With If-Range the range is only honoured while the image is still the
+     * version the client holds part of; otherwise the whole image is sent.
+     * @param userAgent
+     * @param imageName
+     * @param size longest side of the image in pixels, or 0 for the full size image.
+     * @param rangeHeader
+     * @param ifRange entity tag or last modified date of the version the range applies to, if any.
+     * @param request
+     * @return the image or the requested part of it, or 304 if the client's copy is still current
+     */
     @GET
     @Produces("image/png")
     @Path("/{imageName}")
     public Response getImage(
             @HeaderParam("user-agent") String userAgent,
-            @PathParam("imageName") String imageName) {
+            @PathParam("imageName") String imageName,
+            @QueryParam("size") int size,
+            @HeaderParam("Range") String rangeHeader,
+            @HeaderParam("If-Range") String ifRange,
+            @Context Request request) {
+
+        if (size < 0 || size > ImageManager.MAX_VARIANT_SIZE) {
+            _logger.info("Denied user agent: " + userAgent + "; With image size (" + size + ")");
+            return Response.status(Response.Status.BAD_REQUEST).entity(Messages.ILLEGAL_IMAGE_SIZE).build();
+        }
 
+        StoredImage image = null;
         try {
-            BasicAWSCredentials awsCredentials = new BasicAWSCredentials(AWS_ACCESS_KEY_ID, AWS_SECRET_ACCESS_KEY);
-            AmazonS3 s3 = AmazonS3ClientBuilder
-                    .standard()
-                    .withRegion(Regions.AP_SOUTHEAST_2)
-                    .withCredentials(new AWSStaticCredentialsProvider(awsCredentials))
-                    .build();
+            image = size == 0 ? _im.getImage(imageName) : _im.getImage(imageName, size);
+            EntityTag tag = new EntityTag(image.getTag());
 
-            S3Object object = s3.getObject(AWS_BUCKET, imageName);
-            byte[] byteArray = IOUtils.toByteArray(object.getObjectContent());
+            Response.ResponseBuilder notModified = request.evaluatePreconditions(tag);
+            if (notModified != null) {
+                _logger.info("Image " + imageName + " unchanged; send to user agent: " + userAgent);
+                return notModified.tag(tag).lastModified(image.getLastModified()).build();
+            }
 
-            _logger.info("Successfully downloaded " + imageName + " from AWS.");
+            ByteRange range = ifRange == null || matches(ifRange, tag, image.getLastModified())
+                    ? ByteRange.parse(rangeHeader, image.getLength())
+                    : null; // The client's partial copy is of another version, so it needs the whole image
+            if (range != null && !range.isSatisfiable()) {
+                _logger.info("Denied user agent: " + userAgent + "; With unsatisfiable range " + rangeHeader + " of " + imageName);
+                return Response
+                        .status(Response.Status.REQUESTED_RANGE_NOT_SATISFIABLE)
+                        .header("Content-Range", ByteRange.unsatisfiedContentRange(image.getLength()))
+                        .build();
+            }
 
-            return Response
-                    .status(Response.Status.OK)
+            StoredImage body = image;
+            image = null; // Closed once written
+            long position = range == null ? 0 : range.getFirst();
+            long count = range == null ? body.getLength() : range.getCount();
+            Response.ResponseBuilder builder = Response
+                    .status(range == null ? Response.Status.OK : Response.Status.PARTIAL_CONTENT)
                     .entity((StreamingOutput) outputStream -> {
-                        outputStream.write(byteArray);
-                        outputStream.flush();
+                        try (StoredImage stored = body) {
+                            stored.transferTo(Channels.newChannel(outputStream), position, count);
+                            outputStream.flush();
+                        }
                     })
-                    .build();
-        } catch (AmazonS3Exception e) {
+                    .header(HttpHeaders.CONTENT_LENGTH, count)
+                    .header("Accept-Ranges", "bytes")
+                    .tag(tag)
+                    .lastModified(body.getLastModified());
+            if (range != null) {
+                builder.header("Content-Range", range.toContentRange());
+            }
+            return builder.build();
+        } catch (NoSuchFileException e) {
             return Response.status(Response.Status.NOT_FOUND).entity(Messages.NO_IMAGE_FOR_PERFORMER).build();
         } catch (IOException e) {
             return Response.status(Response.Status.SERVICE_UNAVAILABLE).entity(Messages.SERVICE_COMMUNICATION_ERROR).build();
+        } finally {
+            closeQuietly(image);
         }
     }
 
@@ -111,21 +162,23 @@ public class ImageResource {
             return Response.status(Response.Status.BAD_REQUEST).entity(Messages.RESERVATION_REQUEST_WITH_MISSING_FIELDS).build(); // Bad request
         }
 
+        if (_securityContext.getUserPrincipal() == null) { // If token wasn't found or is expired return unauthorized
+            _logger.info("Denied user agent : " + userAgent + "; With expired/invalid authentication token: " + authToken);
+            return Response.status(Response.Status.UNAUTHORIZED).entity(Messages.BAD_AUTHENTICATON_TOKEN).build();
+        }
+
         EntityManager em = _pm.createEntityManager();
 
         try {
             EntityTransaction tx = em.getTransaction();
             tx.begin();
 
-            if (!tokenIsValid(authToken, em)) { // If token wasn't found or is expired return unauthorized
-                _logger.info("Denied user agent : " + userAgent + "; With expired/invalid authentication token: " + authToken);
-                return Response.status(Response.Status.UNAUTHORIZED).entity(Messages.BAD_AUTHENTICATON_TOKEN).build();
-            }
-
             Performer performer = em.find(Performer.class, performerDTO.getId());
             performer.setImageName(performerDTO.getImageName());
 
             tx.commit();
+            _cc.invalidate(); // Cached performers carry their image name
+            _im.evict(performer.getImageName()); // The image may have been replaced under the same name
 
             _logger.info("Successfully added image " + performer.getImageName() + " to performer " + performer.getName() + " with id (" + performer.getId() + ")");
             PerformerDTO returnPerformerDto = PerformerMapper.toDto(performer);
@@ -194,23 +247,127 @@ public class ImageResource {
             response.resume(Messages.UNAUTHENTICATED_REQUEST);
         }
 
+        Long id;
+        try {
+            id = Long.decode(performerId);
+        } catch (NumberFormatException e) {
+            id = null;
+        }
+        if (id == null || !isPerformer(id)) { // Topics are kept for good, so only real performers get one
+            _logger.info("Denied user agent: " + userAgent + "; With unknown performer id (" + performerId + ")");
+            response.resume(Response.status(Response.Status.NOT_FOUND).entity(Messages.UNKNOWN_PERFORMER).build());
+            return;
+        }
+
         // Add AsyncResponse to subscribers for subscription type
-        _sm.addSubscriptionWithId(SubscriptionType.PERFORMER_IMAGE, response, Long.decode(performerId), newsCookie);
+        _sm.addSubscriptionWithId(SubscriptionType.PERFORMER_IMAGE, response, id, newsCookie);
         _logger.info("Subscriber added for new images for performer with id (" + performerId + ")");
     }
 
+    /**
+     * Streams notifications of ANY new image as server-sent events over a single connection that stays open,
+     * instead of one long-poll per notification. A client that reconnects with Last-Event-ID is first sent the
+     * notifications it missed.
+     * @param userAgent
+     * @param authToken
+     * @param lastEventId
+     */
+    @GET
+    @Path("/notifications")
+    @Produces(EventStream.MEDIA_TYPE)
+    public Response streamNewImages(
+            @HeaderParam("user-agent") String userAgent,
+            @HeaderParam("Authorization") String authToken,
+            @HeaderParam("Last-Event-ID") String lastEventId) {
 
-    // Private Methods
+        if (authToken == null) { // User has no access token
+            _logger.info("Denied user agent: " + userAgent + "; No authentication token identified.");
+            return Response.status(Response.Status.FORBIDDEN).entity(Messages.UNAUTHENTICATED_REQUEST).build();
+        }
 
+        EventStream stream = _sm.openStream(SubscriptionType.PERFORMER_IMAGE, lastEventId);
+        if (stream == null) { // Every stream holds a container thread, so their number is capped
+            _logger.info("Denied user agent: " + userAgent + "; Too many event streams open");
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE).entity(Messages.TOO_MANY_EVENT_STREAMS)
+                    .header(HttpHeaders.RETRY_AFTER, EventStream.BUSY_RETRY_SECONDS).build();
+        }
+        _logger.info("Event stream opened for new images");
+        return Response.ok(stream).cacheControl(CacheControl.valueOf("no-store")).build();
+    }
 
-    private boolean tokenIsValid(String authToken, EntityManager em) {
+    /**
+     * Streams notifications of new images for a particular performer as server-sent events.
+     * @param userAgent
+     * @param authToken
+     * @param performerId
+     * @param lastEventId
+     */
+    @GET
+    @Path("/notifications/{id}")
+    @Produces(EventStream.MEDIA_TYPE)
+    public Response streamNewImagesForPerformer(
+            @HeaderParam("user-agent") String userAgent,
+            @HeaderParam("Authorization") String authToken,
+            @PathParam("id") long performerId,
+            @HeaderParam("Last-Event-ID") String lastEventId) {
+
+        if (authToken == null) { // User has no access token
+            _logger.info("Denied user agent: " + userAgent + "; No authentication token identified.");
+            return Response.status(Response.Status.FORBIDDEN).entity(Messages.UNAUTHENTICATED_REQUEST).build();
+        }
+
+        if (!isPerformer(performerId)) { // Topics are kept for good, so only real performers get one
+            _logger.info("Denied user agent: " + userAgent + "; With unknown performer id (" + performerId + ")");
+            return Response.status(Response.Status.NOT_FOUND).entity(Messages.UNKNOWN_PERFORMER).build();
+        }
+
+        EventStream stream = _sm.openStreamWithId(SubscriptionType.PERFORMER_IMAGE, performerId, lastEventId);
+        if (stream == null) { // Every stream holds a container thread, so their number is capped
+            _logger.info("Denied user agent: " + userAgent + "; Too many event streams open");
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE).entity(Messages.TOO_MANY_EVENT_STREAMS)
+                    .header(HttpHeaders.RETRY_AFTER, EventStream.BUSY_RETRY_SECONDS).build();
+        }
+        _logger.info("Event stream opened for new images for performer with id (" + performerId + ")");
+        return Response.ok(stream).cacheControl(CacheControl.valueOf("no-store")).build();
+    }
 
-        // Retrieve corresponding token form the database
-        TypedQuery<Token> tokenQuery = em.createQuery("SELECT t FROM Token t WHERE t.token = :token", Token.class);
-        tokenQuery.setParameter("token", authToken);
-        Token token = tokenQuery.getSingleResult();
 
-        // True if token isn't null and its expiry time is after the current time
-        return token != null && !LocalDateTime.now().isAfter(token.getExpiry());
+    // Private methods
+
+
+    private boolean isPerformer(long performerId) {
+        EntityManager em = _pm.createEntityManager();
+        try {
+            return em.find(Performer.class, performerId) != null;
+        } finally {
+            em.close();
+        }
+    }
+
+    // Whether an If-Range validator names the current version; only strong tags and exact dates qualify
+    private static boolean matches(String ifRange, EntityTag tag, Date lastModified) {
+        String validator = ifRange.trim();
+        if (validator.startsWith("W/")) {
+            return false;
+        }
+        if (validator.startsWith("\"")) {
+            return validator.equals("\"" + tag.getValue() + "\"");
+        }
+        try {
+            long date = ZonedDateTime.parse(validator, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+            return date == lastModified.getTime() / 1000 * 1000;
+        } catch (DateTimeParseException e) {
+            return false;
+        }
+    }
+
+    private static void closeQuietly(StoredImage image) {
+        if (image != null) {
+            try {
+                image.close();
+            } catch (IOException e) {
+                _logger.warn("Could not close cached image", e);
+            }
+        }
     }
-}
+}
\ No newline at end of file
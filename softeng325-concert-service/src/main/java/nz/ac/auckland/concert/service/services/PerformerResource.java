@@ -4,8 +4,11 @@ import nz.ac.auckland.concert.common.dto.PerformerDTO;
 import nz.ac.auckland.concert.common.message.Messages;
 import nz.ac.auckland.concert.service.domain.Mappers.PerformerMapper;
 import nz.ac.auckland.concert.service.domain.Performer;
-import nz.ac.auckland.concert.service.domain.Token;
 import nz.ac.auckland.concert.service.domain.Types.SubscriptionType;
+import nz.ac.auckland.concert.service.util.CatalogueTags;
+import nz.ac.auckland.concert.service.util.EventStream;
+import nz.ac.auckland.concert.service.util.PageCursor;
+import nz.ac.auckland.concert.service.util.XmlFragmentStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -18,7 +21,8 @@ import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.*;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.Date;
 import java.util.List;
 import java.util.stream.Collectors;
 
@@ -27,53 +31,73 @@ public class PerformerResource {
 
     private static final Logger _logger = LoggerFactory.getLogger(PerformerResource.class);
 
+    private static final int EXPORT_BATCH_SIZE = 100;
+    private static final CacheControl REVALIDATE = CacheControl.valueOf("no-cache"); // Cacheable, but check the tag first
+
     @Context // Information about the service hosted URI
     private static UriInfo _uri;
 
+    @Context // Caller resolved from the authorization token by AuthenticationFilter
+    private SecurityContext _securityContext;
+
     private final PersistenceManager _pm; // Persistence
     private final SubscriptionManager _sm; // Subscription management
+    private final CatalogueCache _cc; // Mapped concerts and performers
 
     public PerformerResource() {
 
         _pm = PersistenceManager.instance();
         _sm = SubscriptionManager.instance();
+        _cc = CatalogueCache.instance();
     }
 
     /**
      * Retrieves a single performer given by id
      * @param userAgent
      * @param id
-     * @return PerformerDTO
+     * @param request carries the client's validators, if any.
+     * @return PerformerDTO, or 304 if the client's copy is still current
      */
     @GET
     @Path("/{id}")
     @Produces(MediaType.APPLICATION_XML)
     public Response getPerformer(
             @HeaderParam("user-agent") String userAgent,
-            @PathParam("id") long id) {
-
-        EntityManager em = _pm.createEntityManager();
-
-        try{
-            Performer performer = em.find(Performer.class, id);
-            PerformerDTO returnPerformer = PerformerMapper.toDto(performer);
+            @PathParam("id") long id,
+            @Context Request request) {
+
+        Date lastModified = _cc.getLastModified(); // Taken before reading, so it never claims newer data
+        PerformerDTO returnPerformer = _cc.getPerformer(id, () -> loadPerformer(id));
+        if (returnPerformer == null) { // Checked first, so a stale tag never vouches for a missing performer
+            _logger.info("Denied user agent: " + userAgent + "; No performer with id: " + id);
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
 
-            return Response
-                    .status(Response.Status.OK)
-                    .entity(returnPerformer)
-                    .build();
-        } finally {
-            em.close();
+        EntityTag tag = CatalogueTags.ofPerformer(returnPerformer);
+        Response.ResponseBuilder notModified = request.evaluatePreconditions(tag); // The tag alone, as several changes can share a second
+        if (notModified != null) { // Client already holds this version
+            return notModified.tag(tag).cacheControl(REVALIDATE).build();
         }
+
+        return Response
+                .status(Response.Status.OK)
+                .entity(returnPerformer)
+                .tag(tag)
+                .lastModified(lastModified)
+                .cacheControl(REVALIDATE)
+                .build();
     }
 
     /**
      * This method allows for multiple performers to be retrieved in batches up to the clients discretion.
-     * No authentication is required here.
+     * No authentication is required here. Pages are addressed either by an opaque cursor, where the returned URI
+     * carries the cursor of the next page, or by offset for compatibility with older clients.
      * @param userAgent
      * @param start
      * @param size
-     * @return list of performers with uri for next batch
+     * @param cursor empty for the first page, else the cursor from the previous page's URI.
+     * @param request carries the client's validators, if any.
+     * @return list of performers with uri for next batch, or 304 if the client's copy is still current
      */
     @GET
     @Path("/")
@@ -81,31 +105,81 @@ public class PerformerResource {
     public Response getPerformers(
             @HeaderParam("user-agent") String userAgent,
             @DefaultValue("0") @QueryParam("start") int start,
-            @DefaultValue("10") @QueryParam("size") int size) {
+            @DefaultValue("10") @QueryParam("size") int size,
+            @QueryParam("cursor") String cursor,
+            @Context Request request) {
 
-        EntityManager em = _pm.createEntityManager();
+        if (start < 0 || size < 0) { // Checked up front, so errors from loading the page are never mistaken for the client's
+            _logger.info("Denied user agent: " + userAgent + "; Illegal page start: " + start + " and size: " + size);
+            return Response.status(Response.Status.BAD_REQUEST).entity(Messages.ILLEGAL_PAGE_RANGE).build();
+        }
+
+        long afterId;
+        try {
+            afterId = cursor != null ? PageCursor.decode(cursor) : PageCursor.FIRST;
+        } catch (IllegalArgumentException e) {
+            _logger.info("Denied user agent: " + userAgent + "; Malformed page cursor: " + cursor);
+            return Response.status(Response.Status.BAD_REQUEST).entity(Messages.MALFORMED_PAGE_CURSOR).build();
+        }
+
+        Date lastModified = _cc.getLastModified(); // Taken before reading, so it never claims newer data
 
         try {
-            TypedQuery<Performer> q = em.createQuery("SELECT p FROM Performer p", Performer.class);
-            List<Performer> performers = q.setFirstResult(start).setMaxResults(size).getResultList();
+            List<PerformerDTO> performerDTOs;
+            String next;
+            if (cursor != null) { // Keyset page: seek past the last id of the previous page
+                performerDTOs = _cc.getPerformerPage("cursor=" + cursor + "&size=" + size, () -> loadPerformersAfter(afterId, size));
+                String nextCursor = performerDTOs.isEmpty() ? cursor : PageCursor.encode(performerDTOs.get(performerDTOs.size() - 1).getId());
+                next = String.format("performers?cursor=%s&size=%d", nextCursor, size);
+            } else {
+                performerDTOs = _cc.getPerformerPage("start=" + start + "&size=" + size, () -> loadPerformers(start, size));
+                next = String.format("performers?start=%d&size=%d", start + size, size);
+            }
+
+            EntityTag tag = CatalogueTags.ofPerformers(performerDTOs, next);
+            Response.ResponseBuilder notModified = request.evaluatePreconditions(tag); // The tag alone, as several changes can share a second
+            if (notModified != null) { // Client already holds this version of the page, including its next page URI
+                return notModified.tag(tag).cacheControl(REVALIDATE).build();
+            }
 
-            List<PerformerDTO> performerDTOs = performers.stream().map(PerformerMapper::toDto).collect(Collectors.toList());
             GenericEntity<List<PerformerDTO>> entity = new GenericEntity<List<PerformerDTO>>(performerDTOs) {};
-            _logger.info("Retrieved (" + performers.size() + ") performers; send to user agent: " + userAgent);
+            _logger.info("Retrieved (" + performerDTOs.size() + ") performers; send to user agent: " + userAgent);
 
             return Response
                     .status(Response.Status.OK)
-                    .location(new URI(_uri.getBaseUri() + String.format("performers?start=%d&size=%d", start + size, size))) // Next batch of performers
+                    .location(new URI(_uri.getBaseUri() + next)) // Next batch of performers
                     .entity(entity)
+                    .tag(tag)
+                    .lastModified(lastModified)
+                    .cacheControl(REVALIDATE)
                     .build();
         } catch (URISyntaxException e) {
             _logger.info("Denied user agent: " + userAgent + "; could not convert return URI");
             return Response.status(Response.Status.INTERNAL_SERVER_ERROR).build();
-        } finally {
-            em.close();
         }
     }
 
+    /**
+     * Streams every performer in a single response, enclosed in a performers element. Performers are read and written in
+     * batches, so the response starts straight away and the full list is never held in memory.
+     * No authentication is required here.
+     * @param userAgent
+     * @return all performers
+     */
+    @GET
+    @Path("/export")
+    @Produces(MediaType.APPLICATION_XML)
+    public Response exportPerformers(
+            @HeaderParam("user-agent") String userAgent) {
+
+        _logger.info("Exporting performers to user agent: " + userAgent);
+        return Response
+                .status(Response.Status.OK)
+                .entity(new XmlFragmentStream<>(PerformerDTO.class, "performers", EXPORT_BATCH_SIZE,
+                        this::loadPerformersAfter, performer -> performer.getId()))
+                .build();
+    }
+
     /**
      * Creates a new performer entity in the database of the service. Authentication is required and can be
      * provided through an authorization token.
@@ -131,21 +205,22 @@ public class PerformerResource {
             return Response.status(Response.Status.BAD_REQUEST).entity(Messages.RESERVATION_REQUEST_WITH_MISSING_FIELDS).build(); // Bad request
         }
 
+        if (_securityContext.getUserPrincipal() == null) { // If token wasn't found or is expired return unauthorized
+            _logger.info("Denied user agent : " + userAgent + "; With expired/invalid authentication token: " + authToken);
+            return Response.status(Response.Status.UNAUTHORIZED).entity(Messages.BAD_AUTHENTICATON_TOKEN).build();
+        }
+
         EntityManager em = _pm.createEntityManager();
 
         try {
             EntityTransaction tx = em.getTransaction();
             tx.begin();
 
-            if (!tokenIsValid(authToken, em)) { // If token wasn't found or is expired return unauthorized
-                _logger.info("Denied user agent : " + userAgent + "; With expired/invalid authentication token: " + authToken);
-                return Response.status(Response.Status.UNAUTHORIZED).entity(Messages.BAD_AUTHENTICATON_TOKEN).build();
-            }
-
             Performer newPerformer = PerformerMapper.toDomainModel(performerDTO);
             em.persist(newPerformer);
 
             tx.commit();
+            _cc.invalidate();
             _logger.info("Successfully created new performer with id: " + newPerformer.getId() + " and name: " + newPerformer.getName());
 
             _sm.notifySubscribers(SubscriptionType.PERFORMER, newPerformer, _uri.getBaseUri() + "performers/" + newPerformer.getId());
@@ -187,18 +262,74 @@ public class PerformerResource {
         _logger.info("Subscriber added for new performers");
     }
 
+    /**
+     * Streams notifications of new performers as server-sent events over a single connection that stays open, instead of
+     * one long-poll per notification. A client that reconnects with Last-Event-ID is first sent the notifications it
+     * missed.
+     * @param userAgent
+     * @param authToken
+     * @param lastEventId
+     */
+    @GET
+    @Path("/notifications")
+    @Produces(EventStream.MEDIA_TYPE)
+    public Response streamNewPerformers(
+            @HeaderParam("user-agent") String userAgent,
+            @HeaderParam("Authorization") String authToken,
+            @HeaderParam("Last-Event-ID") String lastEventId) {
+
+        if (authToken == null) { // User has no access token
+            _logger.info("Denied user agent: " + userAgent + "; No authentication token identified.");
+            return Response.status(Response.Status.FORBIDDEN).entity(Messages.UNAUTHENTICATED_REQUEST).build();
+        }
+
+        EventStream stream = _sm.openStream(SubscriptionType.PERFORMER, lastEventId);
+        if (stream == null) { // Every stream holds a container thread, so their number is capped
+            _logger.info("Denied user agent: " + userAgent + "; Too many event streams open");
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE).entity(Messages.TOO_MANY_EVENT_STREAMS)
+                    .header(HttpHeaders.RETRY_AFTER, EventStream.BUSY_RETRY_SECONDS).build();
+        }
+        _logger.info("Event stream opened for new performers");
+        return Response.ok(stream).cacheControl(CacheControl.valueOf("no-store")).build();
+    }
+
 
     // Private methods
 
 
-    private boolean tokenIsValid(String authToken, EntityManager em) {
+    private PerformerDTO loadPerformer(long id) {
+        EntityManager em = _pm.createEntityManager();
+
+        try {
+            List<Performer> performers = FetchPlans.findPerformers(em, Collections.singletonList(id));
+            return performers.isEmpty() ? null : PerformerMapper.toDto(performers.get(0));
+        } finally {
+            em.close();
+        }
+    }
+
+    private List<PerformerDTO> loadPerformers(int start, int size) {
+        EntityManager em = _pm.createEntityManager();
+
+        try {
+            TypedQuery<Long> q = em.createQuery("SELECT p.id FROM Performer p ORDER BY p.id", Long.class);
+            List<Long> ids = q.setFirstResult(start).setMaxResults(size).getResultList();
+            return FetchPlans.findPerformers(em, ids).stream().map(PerformerMapper::toDto).collect(Collectors.toList());
+        } finally {
+            em.close();
+        }
+    }
 
-        // Retrieve corresponding token form the database
-        TypedQuery<Token> tokenQuery = em.createQuery("SELECT t FROM Token t WHERE t.token = :token", Token.class);
-        tokenQuery.setParameter("token", authToken);
-        Token token = tokenQuery.getSingleResult();
+    private List<PerformerDTO> loadPerformersAfter(long afterId, int size) {
+        EntityManager em = _pm.createEntityManager();
 
-        // True if token isn't null and its expiry time is after the current time
-        return token != null && !LocalDateTime.now().isAfter(token.getExpiry());
+        try {
+            TypedQuery<Long> q = em.createQuery("SELECT p.id FROM Performer p WHERE p.id > :afterId ORDER BY p.id", Long.class);
+            q.setParameter("afterId", afterId);
+            List<Long> ids = q.setMaxResults(size).getResultList();
+            return FetchPlans.findPerformers(em, ids).stream().map(PerformerMapper::toDto).collect(Collectors.toList());
+        } finally {
+            em.close();
+        }
     }
 }
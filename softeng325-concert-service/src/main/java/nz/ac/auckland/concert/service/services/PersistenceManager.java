@@ -1,8 +1,14 @@
 package nz.ac.auckland.concert.service.services;
 
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.SecondLevelCacheStatistics;
+import org.hibernate.stat.Statistics;
+
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.Persistence;
+import java.util.Map;
+import java.util.TreeMap;
 
 /**
  * Singleton class that manages an EntityManagerFactory. When a
@@ -14,6 +20,9 @@ import javax.persistence.Persistence;
  * persistence context, it should call the PersistentManager's 
  * createEntityManager() method to acquire one.
  * 
+ * The EntityManagerFactory also owns the second-level and query caches, whose
+ * statistics are available through getStatistics() and are served by
+ * StatisticsResource.
  */
 public class PersistenceManager {
 	private static PersistenceManager _instance = null;
@@ -28,6 +37,27 @@ public class PersistenceManager {
 		return _entityManagerFactory.createEntityManager();
 	}
 	
+	/**
+	 * Returns the statistics Hibernate collects for the persistence unit, e.g.
+	 * query cache hits and misses.
+	 */
+	public Statistics getStatistics() {
+		return _entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+	}
+	
+	/**
+	 * Returns the hit, miss and put counts of each second-level cache region,
+	 * keyed by region name.
+	 */
+	public Map<String, SecondLevelCacheStatistics> getCacheRegionStatistics() {
+		Statistics statistics = getStatistics();
+		Map<String, SecondLevelCacheStatistics> regions = new TreeMap<>();
+		for (String region : statistics.getSecondLevelCacheRegionNames()) {
+			regions.put(region, statistics.getSecondLevelCacheStatistics(region));
+		}
+		return regions;
+	}
+	
 	public static PersistenceManager instance() {
 		if(_instance == null) {
 			_instance = new PersistenceManager();
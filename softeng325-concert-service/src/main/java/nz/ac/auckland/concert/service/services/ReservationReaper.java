@@ -0,0 +1,203 @@
+package nz.ac.auckland.concert.service.services;
+
+import nz.ac.auckland.concert.service.domain.Reservation;
+import nz.ac.auckland.concert.service.domain.User;
+import nz.ac.auckland.concert.service.util.PerformanceKey;
+import nz.ac.auckland.concert.service.util.SeatInventory;
+import nz.ac.auckland.concert.service.util.TimingWheel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityTransaction;
+import javax.persistence.Query;
+import javax.persistence.TypedQuery;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Singleton class that expires reservations in the background. Every reservation is scheduled on a timing wheel
+ * against its expiry; when the wheel passes that time the seats of the lapsed hold are released from the in-memory
+ * seat inventory of its performance straight away. Expired reservations that were never booked are then deleted
+ * from the database in batches, once a grace period has passed so that bookings which were started before the
+ * expiry have finished committing.
+ */
+public class ReservationReaper {
+
+    private static final Logger _logger = LoggerFactory.getLogger(ReservationReaper.class);
+
+    private static final long TICK_MILLIS = 100;
+    private static final int WHEEL_SIZE = 512; // Just under a minute per turn
+    private static final long PURGE_INTERVAL_MILLIS = 5000; // 5 seconds
+    private static final long PURGE_GRACE_MILLIS = 5000; // 5 seconds
+    private static final int PURGE_BATCH_SIZE = 100;
+
+    private static ReservationReaper _instance = null;
+
+    private final PersistenceManager _pm; // Persistence
+    private final SeatInventoryManager _im; // In-memory seat availability
+
+    private final TimingWheel<PerformanceKey> _wheel;
+    private final ScheduledExecutorService _executor;
+
+    private final AtomicLong _releasedHolds = new AtomicLong();
+    private final AtomicLong _purgedReservations = new AtomicLong();
+
+    private boolean _started = false;
+
+    protected ReservationReaper() {
+
+        _pm = PersistenceManager.instance();
+        _im = SeatInventoryManager.instance();
+
+        _wheel = new TimingWheel<>(TICK_MILLIS, WHEEL_SIZE, System.currentTimeMillis());
+        _executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "reservation-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public static synchronized ReservationReaper instance() {
+        if (_instance == null) {
+            _instance = new ReservationReaper();
+        }
+        return _instance;
+    }
+
+    /**
+     * Starts releasing and purging expired reservations in the background. Has no effect if already started.
+     */
+    public synchronized void start() {
+        if (_started) {
+            return;
+        }
+        _started = true;
+
+        _executor.scheduleAtFixedRate(this::tick, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+        _executor.scheduleWithFixedDelay(this::purge, 0, PURGE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        _logger.info("Started reservation reaper");
+    }
+
+    /**
+     * Schedules the hold of a reservation to be released at its expiry.
+     * @param key performance the reservation holds seats for.
+     * @param expiry
+     */
+    public void schedule(PerformanceKey key, LocalDateTime expiry) {
+        _wheel.schedule(key, expiry.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+    }
+
+    /**
+     * Returns the number of lapsed holds whose seats have been released so far.
+     */
+    public long getReleasedHoldCount() {
+        return _releasedHolds.get();
+    }
+
+    /**
+     * Returns the number of expired reservations deleted from the database so far.
+     */
+    public long getPurgedReservationCount() {
+        return _purgedReservations.get();
+    }
+
+    /**
+     * Returns the number of reservations still waiting for their expiry.
+     */
+    public int getPendingCount() {
+        return _wheel.size();
+    }
+
+
+    // Private methods
+
+
+    private void tick() {
+        try {
+            List<PerformanceKey> due = _wheel.advance(System.currentTimeMillis());
+            if (due.isEmpty()) {
+                return;
+            }
+
+            LocalDateTime now = LocalDateTime.now();
+            Set<PerformanceKey> keys = new HashSet<>(due); // Each performance only needs to be swept once
+            for (PerformanceKey key : keys) {
+                SeatInventory inventory = _im.getLoadedInventory(key.getConcertId(), key.getDate());
+                if (inventory != null) { // An unloaded inventory reads only unexpired holds when it is loaded
+                    _releasedHolds.addAndGet(inventory.releaseExpired(now));
+                }
+            }
+        } catch (RuntimeException e) { // Keep the schedule alive
+            _logger.error("Failed to release expired reservations", e);
+        }
+    }
+
+    private void purge() {
+        try {
+            int purged;
+            do {
+                purged = purgeBatch(LocalDateTime.now().minus(Duration.ofMillis(PURGE_GRACE_MILLIS)));
+                _purgedReservations.addAndGet(purged);
+            } while (purged == PURGE_BATCH_SIZE);
+        } catch (RuntimeException e) { // Keep the schedule alive, the batch is retried on the next run
+            _logger.error("Failed to purge expired reservations", e);
+        }
+    }
+
+    private int purgeBatch(LocalDateTime cutoff) {
+        EntityManager em = _pm.createEntityManager();
+
+        try {
+            EntityTransaction tx = em.getTransaction();
+            tx.begin();
+
+            // Reservations that expired before the cutoff and were never booked
+            TypedQuery<Reservation> expiredQuery = em.createQuery(
+                    "SELECT r FROM Reservation r WHERE r.expiry < :cutoff AND NOT EXISTS (SELECT b FROM Booking b WHERE b.reservation = r)", Reservation.class);
+            expiredQuery.setParameter("cutoff", cutoff);
+            expiredQuery.setMaxResults(PURGE_BATCH_SIZE);
+            List<Reservation> expired = expiredQuery.getResultList();
+            if (expired.isEmpty()) {
+                tx.commit();
+                return 0;
+            }
+
+            // Users must stop referring to their stale reservation before it can be removed
+            TypedQuery<User> holderQuery = em.createQuery("SELECT u FROM User u WHERE u.reservation IN :reservations", User.class);
+            holderQuery.setParameter("reservations", expired);
+            for (User user : holderQuery.getResultList()) {
+                user.setReservation(null);
+            }
+
+            // Release any seat claims the reservations still hold
+            Query claimQuery = em.createQuery("DELETE FROM SeatClaim c WHERE c.reservationId IN :reservationIds AND c.booked = false");
+            claimQuery.setParameter("reservationIds", expired.stream().map(Reservation::getId).collect(Collectors.toList()));
+            claimQuery.executeUpdate();
+
+            for (Reservation reservation : expired) {
+                em.remove(reservation); // Cascades to its seats
+            }
+            tx.commit();
+
+            _logger.info("Purged (" + expired.size() + ") expired reservations");
+            return expired.size();
+        } catch (RuntimeException e) {
+            if (em.getTransaction().isActive()) {
+                em.getTransaction().rollback();
+            }
+            throw e;
+        } finally {
+            em.close();
+        }
+    }
+}
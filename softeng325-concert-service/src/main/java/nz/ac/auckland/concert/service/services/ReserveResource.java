@@ -6,7 +6,10 @@ import nz.ac.auckland.concert.common.dto.SeatDTO;
 import nz.ac.auckland.concert.common.message.Messages;
 import nz.ac.auckland.concert.service.domain.*;
 import nz.ac.auckland.concert.service.domain.Mappers.SeatMapper;
-import nz.ac.auckland.concert.service.util.TheatreUtility;
+import nz.ac.auckland.concert.service.util.PerformanceKey;
+import nz.ac.auckland.concert.service.util.SeatInventory;
+import nz.ac.auckland.concert.service.util.TransactionRetry;
+import org.hibernate.jpa.QueryHints;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -15,11 +18,13 @@ import javax.ws.rs.*;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.SecurityContext;
 import javax.ws.rs.core.UriInfo;
 import java.time.Duration;
 import java.time.LocalDateTime;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.locks.Lock;
 import java.util.stream.Collectors;
 
 @Path("/reserve")
@@ -29,14 +34,25 @@ public class ReserveResource {
 
     private static final long RESERVATION_TIMEOUT_MILLIS = 1000; // 1 second
 
+    // Bounded retries with jittered backoff for transactions that collide under contention
+    private static final TransactionRetry _reserveRetry = new TransactionRetry(3, 10, 100);
+    private static final TransactionRetry _bookRetry = new TransactionRetry(3, 10, 100);
+
     @Context // Information about the service hosted URI
     private static UriInfo _uri;
 
+    @Context // Caller resolved from the authorization token by AuthenticationFilter
+    private SecurityContext _securityContext;
+
     private final PersistenceManager _pm; // Persistence
+    private final SeatInventoryManager _im; // In-memory seat availability
+    private final ReservationReaper _reaper; // Background reservation expiry
 
     public ReserveResource() {
 
         _pm = PersistenceManager.instance();
+        _im = SeatInventoryManager.instance();
+        _reaper = ReservationReaper.instance();
     }
 
     /**
@@ -69,87 +85,39 @@ public class ReserveResource {
             return Response.status(Response.Status.BAD_REQUEST).entity(Messages.RESERVATION_REQUEST_WITH_MISSING_FIELDS).build(); // Bad request
         }
 
+        if (_securityContext.getUserPrincipal() == null) { // If token wasn't found or is expired return unauthorized
+            _logger.info("Denied user agent : " + userAgent + "; With expired/invalid authentication token: " + authToken);
+            return Response.status(Response.Status.UNAUTHORIZED).entity(Messages.BAD_AUTHENTICATON_TOKEN).build();
+        }
+        String username = _securityContext.getUserPrincipal().getName();
+
         EntityManager em = _pm.createEntityManager();
 
         try {
-            if (!tokenIsValid(authToken, em)) { // If token wasn't found or is expired return unauthorized
-                _logger.info("Denied user agent : " + userAgent + "; With expired/invalid authentication token: " + authToken);
-                return Response.status(Response.Status.UNAUTHORIZED).entity(Messages.BAD_AUTHENTICATON_TOKEN).build();
-            }
-
             // Check that the concert in question has a corresponding date in the db.
             TypedQuery<LocalDateTime> concertDateQuery = em.createQuery("SELECT d FROM Concert c JOIN c.dates d WHERE c.id = :id", LocalDateTime.class);
             concertDateQuery.setParameter("id", requestDto.getConcertId());
+            concertDateQuery.setHint(QueryHints.HINT_CACHEABLE, true); // Dates rarely change, served from the query cache
+            concertDateQuery.setHint(QueryHints.HINT_CACHE_REGION, "concert-dates");
             List<LocalDateTime> dates = concertDateQuery.getResultList();
             if (!dates.contains(requestDto.getDate())) { // No concert was found on this date
                 _logger.info("Not concert(s) with id: " + requestDto.getConcertId() + " found on date: " + requestDto.getDate());
                 return Response.status(Response.Status.NOT_FOUND).entity(Messages.CONCERT_NOT_SCHEDULED_ON_RESERVATION_DATE).build();
             }
 
-            EntityTransaction tx = em.getTransaction();
-            tx.begin(); // Ensure entire reading of seats unavailable AND reservation stages are atomic - ensures no conflicting requests from differing clients
-
-            Set<SeatDTO> unavailableSeats;
-
-            // Get all existing bookings and current reservations for this concert on this date
-            TypedQuery<SeatReservation> unavailableSeatsBookingQuery = em.createQuery(
-                    "SELECT s FROM Booking b JOIN b.reservation r JOIN r.concert c JOIN r.seats s WHERE c.id = :concertId AND r.date = :date", SeatReservation.class);
-            unavailableSeatsBookingQuery.setParameter("concertId", requestDto.getConcertId());
-            unavailableSeatsBookingQuery.setParameter("date",  requestDto.getDate());
-            // Check for a change in version upon commit, fine to have only optimistic as not writing to it
-            unavailableSeatsBookingQuery.setLockMode(LockModeType.OPTIMISTIC);
-            List<SeatReservation> seatsBooked = unavailableSeatsBookingQuery.getResultList();
-
-            // Add all seats found in returned bookings to current unavailable seats
-            unavailableSeats = seatsBooked.stream().map(SeatMapper::toDto).collect(Collectors.toSet());
-
-            // Find all seats currently reserved by another reservation process - check that timeout has not been reached using current time
-            TypedQuery<SeatReservation> unavailableSeatsReservationQuery = em.createQuery( // Note: this query checks for expiry time so only ACTIVE reservations are returned
-                    "SELECT s FROM Reservation r JOIN r.concert c JOIN r.seats s WHERE c.id = :concertId AND r.date = :date AND r.expiry > :currentTime", SeatReservation.class);
-            unavailableSeatsReservationQuery.setParameter("concertId", requestDto.getConcertId());
-            unavailableSeatsReservationQuery.setParameter("date", requestDto.getDate());
-            unavailableSeatsReservationQuery.setParameter("currentTime", LocalDateTime.now());
-            // Ensure version is incremented after this read, need this level because this table is written to at the end of this tx.
-            unavailableSeatsReservationQuery.setLockMode(LockModeType.OPTIMISTIC_FORCE_INCREMENT);
-            List<SeatReservation> seatsCurrentlyReserved = unavailableSeatsReservationQuery.getResultList();
-
-            // Add all seats found in returned active reservations to current unavailable seats
-            // If a seat is both booked AND still under valid reservation it is only added to unavailableSeats ONCE as it is a Set<> which does not allow duplicates
-            seatsCurrentlyReserved.stream().map(SeatMapper::toDto).forEach(unavailableSeats::add);
-            _logger.info("There are currently (" + unavailableSeats.size() + ") unavailable seats for concert id: " + requestDto.getConcertId() + " on date: " + requestDto.getDate());
-
-            // Acquire reserved seats w.r.t. unavailable seats
-            Set<SeatDTO> reservedSeats = TheatreUtility.findAvailableSeats(requestDto.getNumberOfSeats(), requestDto.getSeatType(), unavailableSeats);
-            if (reservedSeats.isEmpty()) { // Not enough seats left to reserve
-                _logger.info("Denied user agent: " + userAgent + "; Requested (" + requestDto.getNumberOfSeats() + ") seats; Not enough available seats for concert id: " + requestDto.getConcertId() + " on date: " + requestDto.getDate());
+            // Seat allocation is serialised per performance, so requests for the same performance queue on its lock
+            // rather than colliding, while other performances proceed in parallel. A reservation that still collides
+            // with one the inventory didn't know about is retried against a freshly loaded inventory.
+            PerformanceKey key = new PerformanceKey(requestDto.getConcertId(), requestDto.getDate());
+            try {
+                return _reserveRetry.execute(() -> reserve(requestDto, key, userAgent, username, em));
+            } catch (RuntimeException e) {
+                if (!TransactionRetry.isDuplicateClaim(e)) {
+                    throw e;
+                }
+                _logger.info("Denied user agent: " + userAgent + "; Requested seats for concert id: " + requestDto.getConcertId() + " on date: " + requestDto.getDate() + " were already claimed");
                 return Response.status(Response.Status.CONFLICT).entity(Messages.INSUFFICIENT_SEATS_AVAILABLE_FOR_RESERVATION).build();
             }
-
-            // Create new reservation and persist to database
-            Reservation newReservation = new Reservation(
-                    reservedSeats.stream().map(SeatMapper::toReservation).collect(Collectors.toSet()), // Client's reserved seats
-                    em.find(Concert.class, requestDto.getConcertId()), // Corresponding concert from db
-                    requestDto.getDate(), // Given date
-                    LocalDateTime.now().plus(Duration.ofMillis(RESERVATION_TIMEOUT_MILLIS)), // now plus given reservation timeout
-                    requestDto.getSeatType()
-            );
-            User user = findUser(authToken, em);
-            user.setReservation(newReservation);
-            User mergedUser = em.merge(user);
-            tx.commit();
-
-            ReservationDTO returnReservation = new ReservationDTO(
-                    mergedUser.getReservation().getId(),
-                    requestDto,
-                    reservedSeats
-            );
-            _logger.info("Created new reservation for (" + newReservation.getSeats().size() + ") seats for concert id: " + newReservation.getConcert().getId() + " on date: " + newReservation.getDate() + "; For user: " + user.getUsername());
-            _logger.info("Reply to user agent :" + userAgent);
-
-            return Response
-                    .status(Response.Status.OK)
-                    .entity(returnReservation)
-                    .build();
         } finally {
             em.close();
         }
@@ -178,16 +146,22 @@ public class ReserveResource {
             return Response.status(Response.Status.FORBIDDEN).entity(Messages.UNAUTHENTICATED_REQUEST).build();
         }
 
+        if (_securityContext.getUserPrincipal() == null) { // Authentication token has expired
+            _logger.info("Denied user agent : " + userAgent + "; With expired/invalid authentication token: " + authToken);
+            return Response.status(Response.Status.UNAUTHORIZED).entity(Messages.BAD_AUTHENTICATON_TOKEN).build();
+        }
+        String username = _securityContext.getUserPrincipal().getName();
+
         EntityManager em = _pm.createEntityManager();
 
         try {
-            if (!tokenIsValid(authToken, em)) { // Authentication token has expired
-                _logger.info("Denied user agent : " + userAgent + "; With expired/invalid authentication token: " + authToken);
-                return Response.status(Response.Status.UNAUTHORIZED).entity(Messages.BAD_AUTHENTICATON_TOKEN).build();
+            if (em.find(User.class, username) == null) { // Token is still valid but the user is gone
+                _logger.info("Denied user agent: " + userAgent + "; No user found for authenticated name: " + username);
+                return Response.status(Response.Status.UNAUTHORIZED).entity(Messages.UNAUTHENTICATED_REQUEST).build();
             }
 
-            TypedQuery<CreditCard> creditCardQuery = em.createQuery("SELECT c FROM Token t JOIN t.user u JOIN u.creditCard c WHERE t.token = :token", CreditCard.class);
-            creditCardQuery.setParameter("token", authToken);
+            TypedQuery<CreditCard> creditCardQuery = em.createQuery("SELECT c FROM User u JOIN u.creditCard c WHERE u.username = :username", CreditCard.class);
+            creditCardQuery.setParameter("username", username);
             try {
                 CreditCard creditCard = creditCardQuery.getSingleResult();
             } catch (NoResultException e) { // User doesn't have any credit card associated with their account
@@ -195,56 +169,207 @@ public class ReserveResource {
                 return Response.status(Response.Status.PAYMENT_REQUIRED).entity(Messages.CREDIT_CARD_NOT_REGISTERED).build();
             }
 
-            EntityTransaction tx = em.getTransaction();
-            tx.begin(); // make the operation of checking reservation expiry to making booking atomic
-
-            TypedQuery<Reservation> reservationQuery = em.createQuery("SELECT r FROM Token t JOIN t.user u JOIN u.reservation r WHERE t.token = :token", Reservation.class);
-            reservationQuery.setParameter("token", authToken);
-            // Optimistic force increment to ensure no other user reserves these seats after they time out and before this book is committed.
-            reservationQuery.setLockMode(LockModeType.OPTIMISTIC_FORCE_INCREMENT);
-            Reservation foundReservation = reservationQuery.getSingleResult(); // Get reservation for that user (obviously only one allowed at any one time)
-
-            // Check if reservation has expired
-            if (!LocalDateTime.now().isBefore(foundReservation.getExpiry())) {
-                _logger.info("Denied user agent: " + userAgent + "; reservation for concert id: " +
-                        reservationDto.getReservationRequest().getConcertId() + " on date: " + reservationDto.getReservationRequest().getDate() +
-                        " timed out at: " + foundReservation.getExpiry());
-                return Response.status(Response.Status.REQUEST_TIMEOUT).entity(Messages.EXPIRED_RESERVATION).build();
-            }
-
-            Booking newBooking = new Booking(foundReservation, findUser(authToken, em));
-            em.persist(newBooking); // This ensures increment of version number for booking table
-            tx.commit(); // End of atomic operation
-            _logger.info("Created booking for concert id: " +
-                    reservationDto.getReservationRequest().getConcertId() + " on date: " + reservationDto.getReservationRequest().getDate() +
-                    "; Reply to user agent: " + userAgent);
-
-            return Response
-                    .status(Response.Status.NO_CONTENT)
-                    .build();
+            // A booking that collides with a concurrent change to the reservation is retried against fresh state
+            return _bookRetry.execute(() -> book(reservationDto, userAgent, username, em), em::clear);
         } finally {
             em.close();
         }
     }
 
+    /**
+     * Returns the retry policy of reservations, whose counters report contention on seat claims.
+     */
+    public static TransactionRetry getReserveRetry() {
+        return _reserveRetry;
+    }
+
+    /**
+     * Returns the retry policy of bookings, whose counters report contention on reservations.
+     */
+    public static TransactionRetry getBookRetry() {
+        return _bookRetry;
+    }
+
     // Private methods
 
 
-    private boolean tokenIsValid(String authToken, EntityManager em) {
+    /**
+     * One attempt at claiming and persisting the seats of a reservation, made under the performance's lock.
+     */
+    private Response reserve(ReservationRequestDTO requestDto, PerformanceKey key, String userAgent, String username, EntityManager em) {
+        Set<SeatDTO> reservedSeats;
+        User mergedUser;
+        Reservation newReservation;
+
+        User user = em.find(User.class, username);
+        if (user == null) { // Token is still valid but the user is gone, e.g. a SIGNED token issued before a reset
+            _logger.info("Denied user agent: " + userAgent + "; No user found for authenticated name: " + username);
+            return Response.status(Response.Status.UNAUTHORIZED).entity(Messages.UNAUTHENTICATED_REQUEST).build();
+        }
+
+        Lock lock = _im.getLock(key);
+        lock.lock();
+        try {
+            // Atomically take the seats from the in-memory inventory of this performance, no database reads required
+            SeatInventory inventory = _im.getInventory(key, em);
+            SeatInventory.Hold hold = inventory.claim(
+                    requestDto.getNumberOfSeats(),
+                    requestDto.getSeatType(),
+                    LocalDateTime.now().plus(Duration.ofMillis(RESERVATION_TIMEOUT_MILLIS)), // now plus given reservation timeout
+                    _im.getAllocationStrategy(requestDto.getConcertId()) // Seat picking strategy configured for this concert
+            );
+            if (hold == null) { // Not enough seats left to reserve
+                _logger.info("Denied user agent: " + userAgent + "; Requested (" + requestDto.getNumberOfSeats() + ") seats; Not enough available seats for concert id: " + requestDto.getConcertId() + " on date: " + requestDto.getDate());
+                return Response.status(Response.Status.CONFLICT).entity(Messages.INSUFFICIENT_SEATS_AVAILABLE_FOR_RESERVATION).build();
+            }
+            reservedSeats = hold.getSeats();
 
-        // Retrieve corresponding token form the database
-        TypedQuery<Token> tokenQuery = em.createQuery("SELECT t FROM Token t WHERE t.token = :token", Token.class);
-        tokenQuery.setParameter("token", authToken);
-        Token token = tokenQuery.getSingleResult();
+            try {
+                EntityTransaction tx = em.getTransaction();
+                tx.begin();
+
+                // Create new reservation and persist to database
+                newReservation = new Reservation(
+                        reservedSeats.stream().map(SeatMapper::toReservation).collect(Collectors.toSet()), // Client's reserved seats
+                        em.getReference(Concert.class, requestDto.getConcertId()), // Corresponding concert from db
+                        requestDto.getDate(), // Given date
+                        hold.getExpiry(),
+                        requestDto.getSeatType()
+                );
+                user.setReservation(newReservation);
+                mergedUser = em.merge(user);
+
+                // Lapsed holds on this performance no longer claim their seats
+                Query lapsedQuery = em.createQuery("DELETE FROM SeatClaim c WHERE c.id.concertId = :concertId AND c.id.date = :date " +
+                        "AND c.booked = false AND c.expiry <= :currentTime");
+                lapsedQuery.setParameter("concertId", key.getConcertId());
+                lapsedQuery.setParameter("date", key.getDate());
+                lapsedQuery.setParameter("currentTime", LocalDateTime.now());
+                lapsedQuery.executeUpdate();
+
+                // Claim every seat with an insert, batched on flush; a seat that is already claimed violates the key
+                long reservationId = mergedUser.getReservation().getId();
+                for (SeatDTO seat : reservedSeats) {
+                    em.persist(new SeatClaim(SeatMapper.toClaimId(key, seat), reservationId, hold.getExpiry()));
+                }
+                tx.commit();
+            } catch (RuntimeException e) { // Reservation was not persisted so give the seats back
+                if (em.getTransaction().isActive()) {
+                    em.getTransaction().rollback();
+                }
+                em.clear();
+                inventory.release(hold);
+
+                if (TransactionRetry.isDuplicateClaim(e)) { // The database holds claims the inventory didn't know about
+                    _im.invalidate(key);
+                }
+                throw e;
+            }
+            inventory.confirm(hold, mergedUser.getReservation().getId());
+            _reaper.schedule(inventory.getKey(), hold.getExpiry()); // Release the seats as soon as the hold lapses
+        } finally {
+            lock.unlock();
+        }
 
-        // True if token isn't null and its expiry time is after the current time
-        return token != null && !LocalDateTime.now().isAfter(token.getExpiry());
+        ReservationDTO returnReservation = new ReservationDTO(
+                mergedUser.getReservation().getId(),
+                requestDto,
+                reservedSeats
+        );
+        _logger.info("Created new reservation for (" + reservedSeats.size() + ") seats for concert id: " + requestDto.getConcertId() + " on date: " + newReservation.getDate() + "; For user: " + mergedUser.getUsername());
+        _logger.info("Reply to user agent :" + userAgent);
+
+        return Response
+                .status(Response.Status.OK)
+                .entity(returnReservation)
+                .build();
     }
 
-    private User findUser(String authToken, EntityManager em) {
+    /**
+     * One attempt at turning the user's reservation into a booking, from reading the reservation to committing.
+     */
+    private Response book(ReservationDTO reservationDto, String userAgent, String username, EntityManager em) {
+        EntityTransaction tx = em.getTransaction();
+        tx.begin(); // make the operation of checking reservation expiry to making booking atomic
+
+        try {
+            User user = em.find(User.class, username);
+            if (user == null) { // Token is still valid but the user is gone, e.g. a SIGNED token issued before a reset
+                tx.rollback();
+                _logger.info("Denied user agent: " + userAgent + "; No user found for authenticated name: " + username);
+                return Response.status(Response.Status.UNAUTHORIZED).entity(Messages.UNAUTHENTICATED_REQUEST).build();
+            }
+
+            TypedQuery<Reservation> reservationQuery = em.createQuery("SELECT r FROM User u JOIN u.reservation r WHERE u.username = :username", Reservation.class);
+            reservationQuery.setParameter("username", username);
+            // Optimistic force increment to ensure the reservation is not purged by the reaper before this book is committed.
+            reservationQuery.setLockMode(LockModeType.OPTIMISTIC_FORCE_INCREMENT);
+            Reservation foundReservation;
+            try {
+                foundReservation = reservationQuery.getSingleResult(); // Get reservation for that user (obviously only one allowed at any one time)
+            } catch (NoResultException e) { // Reservation expired and has already been purged
+                tx.rollback();
+                _logger.info("Denied user agent: " + userAgent + "; No active reservation found for user.");
+                return Response.status(Response.Status.REQUEST_TIMEOUT).entity(Messages.EXPIRED_RESERVATION).build();
+            }
+
+            // Check if reservation has expired
+            if (!LocalDateTime.now().isBefore(foundReservation.getExpiry())) {
+                tx.rollback();
+                _logger.info("Denied user agent: " + userAgent + "; reservation for concert id: " +
+                        reservationDto.getReservationRequest().getConcertId() + " on date: " + reservationDto.getReservationRequest().getDate() +
+                        " timed out at: " + foundReservation.getExpiry());
+                return Response.status(Response.Status.REQUEST_TIMEOUT).entity(Messages.EXPIRED_RESERVATION).build();
+            }
+
+            // Booking is serialised with reservations of the same performance so the inventory and database agree
+            PerformanceKey key = new PerformanceKey(foundReservation.getConcert().getId(), foundReservation.getDate());
+            Lock lock = _im.getLock(key);
+            lock.lock();
+            try {
+                // Turn the held seats into booked seats, this fails if the hold lapsed and the seats were released
+                SeatInventory inventory = _im.getInventory(key, em);
+                if (!inventory.book(foundReservation.getId())) {
+                    tx.rollback();
+                    _logger.info("Denied user agent: " + userAgent + "; reservation id: " + foundReservation.getId() + " no longer holds its seats");
+                    return Response.status(Response.Status.REQUEST_TIMEOUT).entity(Messages.EXPIRED_RESERVATION).build();
+                }
+
+                try {
+                    // Turn the seat claims into sales, which only succeeds for claims that have not lapsed
+                    Query sellQuery = em.createQuery("UPDATE SeatClaim c SET c.booked = true WHERE c.reservationId = :reservationId " +
+                            "AND c.booked = false AND c.expiry > :currentTime");
+                    sellQuery.setParameter("reservationId", foundReservation.getId());
+                    sellQuery.setParameter("currentTime", LocalDateTime.now());
+                    if (sellQuery.executeUpdate() != foundReservation.getSeats().size()) {
+                        tx.rollback();
+                        _im.invalidate(key);
+                        _logger.info("Denied user agent: " + userAgent + "; reservation id: " + foundReservation.getId() + " no longer claims its seats");
+                        return Response.status(Response.Status.REQUEST_TIMEOUT).entity(Messages.EXPIRED_RESERVATION).build();
+                    }
+
+                    Booking newBooking = new Booking(foundReservation, user);
+                    em.persist(newBooking); // This ensures increment of version number for booking table
+                    tx.commit(); // End of atomic operation
+                } catch (RuntimeException e) { // Booking was not persisted so the inventory no longer matches the database
+                    _im.invalidate(key); // Re-read seat state before any retry
+                    throw e;
+                }
+            } finally {
+                lock.unlock();
+            }
+        } catch (RuntimeException e) { // Leave no transaction behind for the next attempt
+            if (tx.isActive()) {
+                tx.rollback();
+            }
+            throw e;
+        }
+        _logger.info("Created booking for concert id: " +
+                reservationDto.getReservationRequest().getConcertId() + " on date: " + reservationDto.getReservationRequest().getDate() +
+                "; Reply to user agent: " + userAgent);
 
-        TypedQuery<User> userQuery = em.createQuery("SELECT u FROM Token t JOIN t.user u WHERE t.token = :token", User.class);
-        userQuery.setParameter("token", authToken);
-        return userQuery.getSingleResult();
+        return Response
+                .status(Response.Status.NO_CONTENT)
+                .build();
     }
 }
\ No newline at end of file
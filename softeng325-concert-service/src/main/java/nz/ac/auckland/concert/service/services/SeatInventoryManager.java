@@ -0,0 +1,201 @@
+package nz.ac.auckland.concert.service.services;
+
+import nz.ac.auckland.concert.common.dto.SeatDTO;
+import nz.ac.auckland.concert.service.domain.Mappers.SeatMapper;
+import nz.ac.auckland.concert.service.domain.SeatClaim;
+import nz.ac.auckland.concert.service.domain.Types.SeatAllocationType;
+import nz.ac.auckland.concert.service.util.ContiguousSeatAllocation;
+import nz.ac.auckland.concert.service.util.FragmentedSeatAllocation;
+import nz.ac.auckland.concert.service.util.PerformanceKey;
+import nz.ac.auckland.concert.service.util.PerformanceLocks;
+import nz.ac.auckland.concert.service.util.RandomSeatAllocation;
+import nz.ac.auckland.concert.service.util.SeatAllocationStrategy;
+import nz.ac.auckland.concert.service.util.SeatBand;
+import nz.ac.auckland.concert.service.util.SeatInventory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Lock;
+import java.util.stream.Collectors;
+
+/**
+ * Singleton class that owns the authoritative in-memory seat inventory of every performance. The inventory of a
+ * performance is loaded from the database the first time it is touched, after which reserving, booking and
+ * expiry are applied to it directly so that seat availability never needs to be re-read from the database.
+ *
+ * Seats are picked by the strategy named in Config.SEAT_ALLOCATION, unless Config.SEAT_ALLOCATION_CONCERTS names
+ * another strategy for the concert being reserved.
+ */
+public class SeatInventoryManager {
+
+    private static final Logger _logger = LoggerFactory.getLogger(SeatInventoryManager.class);
+
+    private static final int LOCK_STRIPES = 64;
+
+    private static SeatInventoryManager _instance = null;
+
+    private final ConcurrentMap<PerformanceKey, SeatInventory> _inventories;
+    private final Map<Long, SeatAllocationStrategy> _allocationStrategies; // Per concert overrides, fixed at start-up
+    private final SeatAllocationStrategy _defaultAllocationStrategy;
+    private final PerformanceLocks _locks; // Serialise seat allocation per performance
+
+    protected SeatInventoryManager() {
+
+        _inventories = new ConcurrentHashMap<>();
+        _allocationStrategies = new HashMap<>();
+        for (String entry : Config.SEAT_ALLOCATION_CONCERTS.split(",")) {
+            if (entry.trim().isEmpty()) {
+                continue;
+            }
+            String[] concertAndType = entry.split("=");
+            if (concertAndType.length != 2) {
+                throw new IllegalArgumentException("Expected concertId=type in concert.seat.allocation.concerts: " + entry);
+            }
+            _allocationStrategies.put(Long.valueOf(concertAndType[0].trim()), strategyOf(concertAndType[1]));
+        }
+        _defaultAllocationStrategy = strategyOf(Config.SEAT_ALLOCATION);
+        _logger.info("Allocating seats with " + Config.SEAT_ALLOCATION.trim().toUpperCase() + " strategy; (" +
+                _allocationStrategies.size() + ") concerts use their own");
+        _locks = new PerformanceLocks(LOCK_STRIPES);
+    }
+
+    public static synchronized SeatInventoryManager instance() {
+        if (_instance == null) {
+            _instance = new SeatInventoryManager();
+        }
+        return _instance;
+    }
+
+    /**
+     * Returns the inventory for a performance, loading it from the database if it has not been touched before.
+     * @param concertId
+     * @param date
+     * @param em EntityManager used only when the inventory has to be loaded.
+     * @return SeatInventory
+     */
+    public SeatInventory getInventory(long concertId, LocalDateTime date, EntityManager em) {
+        return getInventory(new PerformanceKey(concertId, date), em);
+    }
+
+    /**
+     * Returns the inventory for a performance, loading it from the database if it has not been touched before. The
+     * load happens under the performance's lock rather than inside the map, so a slow load only delays requests for
+     * the same performance.
+     * @param key
+     * @param em EntityManager used only when the inventory has to be loaded.
+     * @return SeatInventory
+     */
+    public SeatInventory getInventory(PerformanceKey key, EntityManager em) {
+        SeatInventory inventory = _inventories.get(key);
+        if (inventory != null) {
+            return inventory;
+        }
+
+        Lock lock = _locks.get(key);
+        lock.lock();
+        try {
+            inventory = _inventories.get(key); // May have been loaded while waiting for the lock
+            if (inventory == null) {
+                inventory = load(key, em);
+                _inventories.put(key, inventory);
+            }
+            return inventory;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the lock that serialises seat allocation and booking for a performance. Holders may load the
+     * performance's inventory while holding it.
+     */
+    public Lock getLock(PerformanceKey key) {
+        return _locks.get(key);
+    }
+
+    /**
+     * Returns the inventory for a performance only if it is already loaded.
+     */
+    public SeatInventory getLoadedInventory(long concertId, LocalDateTime date) {
+        return _inventories.get(new PerformanceKey(concertId, date));
+    }
+
+    /**
+     * Returns the strategy used to pick seats for reservations of a concert.
+     */
+    public SeatAllocationStrategy getAllocationStrategy(long concertId) {
+        return _allocationStrategies.getOrDefault(concertId, _defaultAllocationStrategy);
+    }
+
+    /**
+     * Drops the inventory of a performance so that it is re-read from the database on next use. Used whenever the
+     * in-memory state may have diverged from what was committed.
+     */
+    public void invalidate(PerformanceKey key) {
+        _inventories.remove(key);
+        _logger.info("Invalidated seat inventory for " + key);
+    }
+
+    /**
+     * Drops every loaded inventory.
+     */
+    public void clear() {
+        _inventories.clear();
+    }
+
+
+    // Private methods
+
+
+    private static SeatAllocationStrategy strategyOf(String name) {
+        switch (SeatAllocationType.valueOf(name.trim().toUpperCase())) {
+            case FRAGMENTED: return new FragmentedSeatAllocation();
+            case RANDOM: return new RandomSeatAllocation();
+            default: return new ContiguousSeatAllocation();
+        }
+    }
+
+    private SeatInventory load(PerformanceKey key, EntityManager em) {
+        SeatInventory inventory = new SeatInventory(key);
+
+        // Every sold seat and every seat held by a reservation that has not yet expired, in one index range read
+        TypedQuery<SeatClaim> claimQuery = em.createQuery(
+                "SELECT c FROM SeatClaim c WHERE c.id.concertId = :concertId AND c.id.date = :date " +
+                        "AND (c.booked = true OR c.expiry > :currentTime)", SeatClaim.class);
+        claimQuery.setParameter("concertId", key.getConcertId());
+        claimQuery.setParameter("date", key.getDate());
+        claimQuery.setParameter("currentTime", LocalDateTime.now());
+        List<SeatClaim> claims = claimQuery.getResultList();
+
+        List<SeatDTO> bookedSeats = new ArrayList<>();
+        Map<Long, List<SeatClaim>> heldClaims = new HashMap<>();
+        for (SeatClaim claim : claims) {
+            if (claim.isBooked()) {
+                bookedSeats.add(SeatMapper.toDto(claim.getId()));
+            } else {
+                heldClaims.computeIfAbsent(claim.getReservationId(), id -> new ArrayList<>()).add(claim);
+            }
+        }
+        inventory.addBooked(bookedSeats);
+
+        for (Map.Entry<Long, List<SeatClaim>> held : heldClaims.entrySet()) {
+            List<SeatDTO> seats = held.getValue().stream().map(claim -> SeatMapper.toDto(claim.getId())).collect(Collectors.toList());
+            LocalDateTime expiry = held.getValue().get(0).getExpiry(); // All claims of a reservation share its expiry
+            inventory.addHeld(held.getKey(), SeatBand.priceBandOf(seats.get(0).getRow()), seats, expiry);
+            ReservationReaper.instance().schedule(key, expiry); // Release the hold when it lapses
+        }
+
+        _logger.info("Loaded seat inventory for " + key + "; (" + bookedSeats.size() + ") booked seats and (" +
+                heldClaims.size() + ") active reservations");
+        return inventory;
+    }
+}
@@ -0,0 +1,150 @@
+package nz.ac.auckland.concert.service.services;
+
+import nz.ac.auckland.concert.service.util.TransactionRetry;
+import org.hibernate.stat.SecondLevelCacheStatistics;
+import org.hibernate.stat.Statistics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.CacheControl;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.util.Map;
+
+@Path("/statistics")
+public class StatisticsResource {
+
+    private static final Logger _logger = LoggerFactory.getLogger(StatisticsResource.class);
+
+    private final PersistenceManager _pm; // Persistence
+    private final ReservationReaper _reaper; // Background reservation expiry
+    private final CatalogueCache _cc; // Cached concerts and performers
+    private final ImageManager _im; // Cached images
+
+    public StatisticsResource() {
+
+        _pm = PersistenceManager.instance();
+        _reaper = ReservationReaper.instance();
+        _cc = CatalogueCache.instance();
+        _im = ImageManager.instance();
+    }
+
+    /**
+     * Reports how well the caches are doing, with one line per Hibernate second-level cache region followed by a line
+     * for the query cache and one for the catalogue cache in front of them. Counts are cumulative since the service
+     * started.
+     * No authentication is required here.
+     * @param userAgent
+     * @return hit, miss and put counts as plain text
+     */
+    @GET
+    @Path("/cache")
+    @Produces(MediaType.TEXT_PLAIN)
+    public Response getCacheStatistics(
+            @HeaderParam("user-agent") String userAgent) {
+
+        StringBuilder report = new StringBuilder();
+        for (Map.Entry<String, SecondLevelCacheStatistics> region : _pm.getCacheRegionStatistics().entrySet()) {
+            SecondLevelCacheStatistics statistics = region.getValue();
+            report.append(String.format("%s: hits=%d misses=%d puts=%d elements=%d%n", region.getKey(),
+                    statistics.getHitCount(), statistics.getMissCount(), statistics.getPutCount(),
+                    statistics.getElementCountInMemory()));
+        }
+        Statistics statistics = _pm.getStatistics();
+        report.append(String.format("query-cache: hits=%d misses=%d puts=%d%n",
+                statistics.getQueryCacheHitCount(), statistics.getQueryCacheMissCount(), statistics.getQueryCachePutCount()));
+        report.append(String.format("catalogue-cache: hits=%d misses=%d evictions=%d elements=%d%n",
+                _cc.getHitCount(), _cc.getMissCount(), _cc.getEvictionCount(), _cc.size()));
+
+        _logger.info("Sent cache statistics to user agent: " + userAgent);
+        return report(report.toString());
+    }
+
+    /**
+     * Reports how the reservation reaper is keeping up: lapsed holds whose seats were released, expired reservations
+     * purged from the database, and reservations still waiting for their expiry.
+     * No authentication is required here.
+     * @param userAgent
+     * @return reaper counts as plain text
+     */
+    @GET
+    @Path("/reaper")
+    @Produces(MediaType.TEXT_PLAIN)
+    public Response getReaperStatistics(
+            @HeaderParam("user-agent") String userAgent) {
+
+        String report = String.format("reaper: released-holds=%d purged-reservations=%d pending=%d%n",
+                _reaper.getReleasedHoldCount(), _reaper.getPurgedReservationCount(), _reaper.getPendingCount());
+
+        _logger.info("Sent reaper statistics to user agent: " + userAgent);
+        return report(report);
+    }
+
+    /**
+     * Reports how often reservations and bookings collided with a concurrent transaction: attempts made, attempts
+     * retried after a conflict, and executions that still conflicted on their final attempt.
+     * No authentication is required here.
+     * @param userAgent
+     * @return retry counts as plain text
+     */
+    @GET
+    @Path("/retries")
+    @Produces(MediaType.TEXT_PLAIN)
+    public Response getRetryStatistics(
+            @HeaderParam("user-agent") String userAgent) {
+
+        StringBuilder report = new StringBuilder();
+        appendRetries(report, "reserve", ReserveResource.getReserveRetry());
+        appendRetries(report, "book", ReserveResource.getBookRetry());
+
+        _logger.info("Sent retry statistics to user agent: " + userAgent);
+        return report(report.toString());
+    }
+
+    /**
+     * Reports how the image cache is doing: requests served from cached images and requests that had to download,
+     * images evicted to stay within the cache size, downloads made, requests that shared a download already in flight,
+     * and the images and bytes currently cached. All counts are 0 when images are served from a local directory. A
+     * second line counts the resized variants rendered, served from the variant cache, refused because too many renders
+     * were waiting, and currently cached.
+     * No authentication is required here.
+     * @param userAgent
+     * @return image cache counts as plain text
+     */
+    @GET
+    @Path("/images")
+    @Produces(MediaType.TEXT_PLAIN)
+    public Response getImageStatistics(
+            @HeaderParam("user-agent") String userAgent) {
+
+        String report = String.format("images: hits=%d misses=%d evictions=%d downloads=%d coalesced=%d elements=%d cached-bytes=%d%n",
+                _im.getHitCount(), _im.getMissCount(), _im.getEvictionCount(), _im.getDownloadCount(),
+                _im.getCoalescedDownloadCount(), _im.size(), _im.getCachedBytes())
+                + String.format("image-variants: renders=%d hits=%d rejected=%d elements=%d%n",
+                _im.getVariantRenderCount(), _im.getVariantHitCount(), _im.getVariantRejectedCount(), _im.getVariantCount());
+
+        _logger.info("Sent image statistics to user agent: " + userAgent);
+        return report(report);
+    }
+
+
+    // Private methods
+
+
+    private static void appendRetries(StringBuilder report, String name, TransactionRetry retry) {
+        report.append(String.format("%s: attempts=%d retries=%d failures=%d%n", name,
+                retry.getAttemptCount(), retry.getRetryCount(), retry.getFailureCount()));
+    }
+
+    private static Response report(String report) {
+        return Response
+                .status(Response.Status.OK)
+                .entity(report)
+                .cacheControl(CacheControl.valueOf("no-store")) // Changes with every request
+                .build();
+    }
+}
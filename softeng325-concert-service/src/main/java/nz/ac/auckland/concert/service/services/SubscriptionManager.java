@@ -1,59 +1,66 @@
 package nz.ac.auckland.concert.service.services;
 
-import javafx.util.Pair;
 import nz.ac.auckland.concert.common.dto.NewsItemDTO;
 import nz.ac.auckland.concert.service.domain.Concert;
 import nz.ac.auckland.concert.service.domain.Performer;
 import nz.ac.auckland.concert.service.domain.Types.SubscriptionType;
-import org.apache.commons.lang3.builder.HashCodeBuilder;
+import nz.ac.auckland.concert.service.util.EventStream;
+import nz.ac.auckland.concert.service.util.NotificationHistory;
 
-import javax.ws.rs.client.AsyncInvoker;
 import javax.ws.rs.container.AsyncResponse;
 import java.util.*;
-import java.util.concurrent.locks.ReentrantLock;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Singleton class that manages subscription services and notifications for
  * subscribed users. An instance of this class will maintain a set of private
  * data structures mapping AsyncResponse objects to subscription notification
  * mechanisms that can be called by any requiring class.
+ *
+ * Each topic (a subscription type, or the images of one performer) keeps its
+ * own registry of waiting responses and its own notification history, so
+ * topics never wait on each other. Waiting responses are held in a lock-free
+ * stack that a notification detaches in a single atomic swap before resuming
+ * them, so a subscriber is either resumed by that notification or still
+ * waiting for the next one, never lost in between.
+ *
+ * Notifications are numbered per topic, and the latest-news cookie carries
+ * the number of the newest notification a subscriber has seen, so that a
+ * returning subscriber is sent exactly the notifications it missed.
+ *
+ * Besides long-polls, a topic can be followed through an event stream that
+ * stays open and is sent every notification as it is published. The event id
+ * of each notification is its sequence number, so a stream resumed with
+ * Last-Event-ID replays the notifications missed in between. Each open stream
+ * occupies a container thread, so only a bounded number may be open at once.
  */
 public class SubscriptionManager {
 
-    private static SubscriptionManager _instance = null;
-
-    private final ReentrantLock _performerLock = new ReentrantLock();
-    private final ReentrantLock _concertLock = new ReentrantLock();
-    private final ReentrantLock _imageLock = new ReentrantLock();
+    private static final int HISTORY_CAPACITY = 100; // Notifications kept per topic for subscribers catching up
+    private static final int STREAM_CAPACITY = 256; // Notifications an event stream may fall behind by
+    private static final int MAX_STREAMS = 100; // Open event streams, each holding a container thread
 
-    private List<AsyncResponse> _performerResponses;
-    private List<AsyncResponse> _concertResponses;
-    private List<AsyncResponse> _imageResponses;
-    private Map<Long, List<AsyncResponse>> _imageResponsesWithIds;
+    private static SubscriptionManager _instance = null;
 
-    // Buffers of latest notifications
-    private List<Pair<Integer, String>> _recentPerformerNotifications;
-    private List<Pair<Integer, String>> _recentConcertNotifications;
-    private List<Pair<Integer, String>> _recentImageNotifications;
-    private Map<Long, List<Pair<Integer, String>>> _recentImageWithIdRecentNotifications;
+    private final Map<SubscriptionType, Topic> _topics; // Fixed at construction, read only afterwards
+    private final ConcurrentMap<Long, Topic> _imageTopicsById; // Images of one performer, keyed by id of an existing performer
+    private final AtomicInteger _openStreams; // Across all topics
 
     protected SubscriptionManager() {
 
-        _performerResponses = new ArrayList<>();
-        _concertResponses = new ArrayList<>();
-        _imageResponses = new ArrayList<>();
-
-        _imageResponsesWithIds = new HashMap<>();
-
-        _recentPerformerNotifications = new ArrayList<>();
-        _recentConcertNotifications = new ArrayList<>();
-        _recentImageNotifications = new ArrayList<>();
-        _recentImageWithIdRecentNotifications = new HashMap<>();
+        _topics = new EnumMap<>(SubscriptionType.class);
+        for (SubscriptionType type : SubscriptionType.values()) {
+            _topics.put(type, new Topic());
+        }
+        _imageTopicsById = new ConcurrentHashMap<>();
+        _openStreams = new AtomicInteger();
 
     }
 
-    public static SubscriptionManager instance() {
+    public static synchronized SubscriptionManager instance() {
         if (_instance == null) {
             _instance = new SubscriptionManager();
         }
@@ -62,127 +69,192 @@ public class SubscriptionManager {
 
     public void addSubscription(SubscriptionType subscriptionType, AsyncResponse asyncResponse, String newsCookie) {
 
-        if (subscriptionType == SubscriptionType.PERFORMER) {
-            synchronized (_performerLock) {
-
-                if (!updateIfUnseenNotifications(newsCookie, _recentPerformerNotifications, asyncResponse))
-                    _performerResponses.add(asyncResponse);
-            }
-        } else if (subscriptionType == SubscriptionType.CONCERT) {
-            synchronized (_concertLock) {
-
-                if (!updateIfUnseenNotifications(newsCookie, _recentConcertNotifications, asyncResponse))
-                    _concertResponses.add(asyncResponse);
-            }
-        } else if (subscriptionType == SubscriptionType.PERFORMER_IMAGE) {
-            synchronized (_imageLock) {
-
-                if (!updateIfUnseenNotifications(newsCookie, _recentImageNotifications, asyncResponse))
-                    _imageResponses.add(asyncResponse);
-            }
-        }
+        subscribe(_topics.get(subscriptionType), asyncResponse, newsCookie);
 
     }
 
     public void addSubscriptionWithId(SubscriptionType subscriptionType, AsyncResponse asyncResponse, Long id, String newCookie) {
 
         if (subscriptionType == SubscriptionType.PERFORMER_IMAGE) {
-            synchronized (_imageLock) {
-                _imageResponsesWithIds.computeIfAbsent(id, k -> new ArrayList<>()); // If map doesn't exist under id then create one
-
-                if (!updateIfUnseenNotifications(newCookie, _recentImageWithIdRecentNotifications.get(id), asyncResponse))
-                _imageResponsesWithIds.get(id).add(asyncResponse);
-            }
+            subscribe(_imageTopicsById.computeIfAbsent(id, k -> new Topic()), asyncResponse, newCookie);
         }
 
     }
 
+    /**
+     * Opens a stream of every notification of a subscription type, for as long as the client stays connected.
+     * @param subscriptionType
+     * @param lastEventId id of the last event the client received on an earlier stream, if it is resuming one.
+     * @return response body that writes the notifications as server-sent events, or null if too many streams are
+     * open already.
+     */
+    public EventStream openStream(SubscriptionType subscriptionType, String lastEventId) {
+        return openStream(_topics.get(subscriptionType), lastEventId);
+    }
+
+    /**
+     * Opens a stream of the notifications of a subscription type for a single performer.
+     */
+    public EventStream openStreamWithId(SubscriptionType subscriptionType, Long id, String lastEventId) {
+        return openStream(_imageTopicsById.computeIfAbsent(id, k -> new Topic()), lastEventId);
+    }
+
     public void notifySubscribers(SubscriptionType subscriptionType, Object object, String url) {
 
         if (subscriptionType == SubscriptionType.PERFORMER) {
-            synchronized (_performerLock) {
-
-                String name = ((Performer)object).getName();
-                String notification = "There's a new performer in town! Check out " + name + " at: " + url;
+            String name = ((Performer)object).getName();
+            String notification = "There's a new performer in town! Check out " + name + " at: " + url;
 
-                storeAndRespond(notification, _recentPerformerNotifications, _performerResponses);
-            }
+            storeAndRespond(notification, _topics.get(subscriptionType));
         } else if (subscriptionType == SubscriptionType.CONCERT) {
-            synchronized (_concertLock) {
-
-                Concert concert = (Concert)object;
-                String notification = "A new concert has been added called " + concert.getTitle() + " featuring " + Arrays.toString(concert.getPerformers().stream().map(Performer::getName).toArray()) + ", Check it out at: " + url;
+            Concert concert = (Concert)object;
+            String notification = "A new concert has been added called " + concert.getTitle() + " featuring " + Arrays.toString(concert.getPerformers().stream().map(Performer::getName).toArray()) + ", Check it out at: " + url;
 
-                storeAndRespond(notification, _recentConcertNotifications, _concertResponses);
-            }
+            storeAndRespond(notification, _topics.get(subscriptionType));
         } else if (subscriptionType == SubscriptionType.PERFORMER_IMAGE) {
+            Performer performer = (Performer)object;
+            String notification = "A new image " + performer.getImageName() + " has been added for " + performer.getName() + ", check it out at: " + url;
 
-            synchronized (_imageLock) {
-                Performer performer = (Performer)object;
-                String notification = "A new image " + performer.getImageName() + " has been added for " + performer.getName() + ", check it out at: " + url;
-
-                storeAndRespond(notification, _recentImageNotifications, _imageResponses);
-            }
+            storeAndRespond(notification, _topics.get(subscriptionType));
         }
     }
 
     public void notifySubscribersWithId(SubscriptionType subscriptionType, Object object, Long id, String url) {
 
         if (subscriptionType == SubscriptionType.PERFORMER_IMAGE) {
-            synchronized (_performerLock) {
-                Performer performer = (Performer)object;
-                String notification = "A new image " + performer.getImageName() + " has been added for " + performer.getName() + ", check it out at: " + url;
+            Performer performer = (Performer)object;
+            String notification = "A new image " + performer.getImageName() + " has been added for " + performer.getName() + ", check it out at: " + url;
 
-                if (_imageResponsesWithIds.get(id) == null) {
-                    return;
-                }
+            // Recorded even with nobody waiting, so subscribers that return with a cookie can catch up
+            storeAndRespond(notification, _imageTopicsById.computeIfAbsent(id, k -> new Topic()));
+        }
+
+    }
+
+
+    // Private methods
 
-                _recentImageWithIdRecentNotifications.computeIfAbsent(id, k -> new ArrayList<>());
 
-                storeAndRespond(notification, _recentImageWithIdRecentNotifications.get(id), _imageResponsesWithIds.get(id));
+    // Registers a response before checking the history, so news stored in between is either in the history or
+    // resumes the response; if both, the second resume is ignored.
+    private void subscribe(Topic topic, AsyncResponse asyncResponse, String newsCookie) {
+        topic.await(asyncResponse);
+        updateIfUnseenNotifications(newsCookie, topic, asyncResponse);
+    }
+
+    // Helper method for both storing recent notification in buffer and responding to all necessary respondents.
+    private void storeAndRespond(String notification, Topic topic) {
+        long sequence;
+        synchronized (topic._history) { // Streams are pushed notifications in sequence, and never one they replay
+            sequence = topic._history.append(notification);
+            for (EventStream stream : topic._streams) { // Only queues, the streams' own threads write
+                if (!stream.push(sequence, notification)) { // Ended, or its client fell too far behind
+                    topic._streams.remove(stream);
+                }
             }
         }
 
+        // Return all notifications to the responses waiting when the news was stored
+        NewsItemDTO newsItem = new NewsItemDTO(Long.toString(sequence), notification);
+        for (Waiting waiting = topic.drain(); waiting != null; waiting = waiting._next) {
+            waiting._response.resume(newsItem);
+        }
     }
 
-    // Helper method for both storing recent notification in buffer and responding to all necessary respondents.
-    private void storeAndRespond(String notification, List<Pair<Integer, String>> notificationList, List<AsyncResponse> responseList) {
-        // Create hashcode of new notification
-        int hashed = new HashCodeBuilder(37,39).append(notification).toHashCode();
+    // Registers a stream and reads the history to replay in one step with respect to storeAndRespond(), so every
+    // notification is either replayed or pushed, exactly once.
+    private EventStream openStream(Topic topic, String lastEventId) {
+        int open;
+        do {
+            open = _openStreams.get();
+            if (open >= MAX_STREAMS) {
+                return null;
+            }
+        } while (!_openStreams.compareAndSet(open, open + 1));
+
+        EventStream stream = new EventStream(STREAM_CAPACITY, closed -> {
+            topic._streams.remove(closed);
+            _openStreams.decrementAndGet();
+        });
+
+        long seen = parseCookie(lastEventId);
+        List<String> missed = Collections.emptyList();
+        long latest;
+        synchronized (topic._history) {
+            topic._streams.add(stream);
+            if (seen >= 0) { // Resuming, so replay what was missed
+                missed = topic._history.since(seen);
+            }
+            latest = topic._history.getLatest();
+        }
+        for (int i = missed.size() - 1; i >= 0; i--) { // Oldest first
+            stream.replay(latest - i, missed.get(i));
+        }
+        return stream;
+    }
 
-        // Add has notification pair to list, remove tail if over 100.
-        notificationList.add(0, new Pair<>(hashed, notification));
-        if (notificationList.size() > 100)
-            notificationList.remove(100);
+    private boolean updateIfUnseenNotifications(String newsCookie, Topic topic, AsyncResponse asyncResponse) {
+        long seen = parseCookie(newsCookie);
+        if (seen < 0) { // No cookie, so only news from now on is of interest
+            return false;
+        }
+
+        List<String> unseen;
+        long latest;
+        synchronized (topic._history) { // The list and its cookie must agree
+            unseen = topic._history.since(seen);
+            latest = topic._history.getLatest();
+        }
 
-        // Return all notifications for performers
-        for (AsyncResponse response : responseList) {
-            response.resume(new NewsItemDTO(Integer.toString(hashed), notification));
+        if (unseen.isEmpty()) {
+            return false; //  Didn't send updates
         }
-        responseList.clear();
+        asyncResponse.resume(new NewsItemDTO(Long.toString(latest), unseen)); // Newest first
+        return true; // Did send updates
     }
 
-    private boolean updateIfUnseenNotifications(String newsCookie, List<Pair<Integer, String>> notificationList, AsyncResponse asyncResponse) {
-        if (newsCookie != null && // Cookie actually exists
-                !notificationList.isEmpty() && // NotificationList actually has notifications in it
-                notificationList.get(0).getKey() != Integer.parseInt(newsCookie)) { // User isn't already up to date with latest notification
+    // Returns the sequence number a cookie carries, or -1 if there is no cookie or it is not a sequence number
+    private static long parseCookie(String newsCookie) {
+        if (newsCookie == null) {
+            return -1;
+        }
+        try {
+            return Math.max(-1, Long.parseLong(newsCookie.trim()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
 
-            for (int i = 0; i < notificationList.size(); i++) {
-                Pair<Integer, String> notification = notificationList.get(i);
+    /**
+     * Subscribers waiting on a topic or streaming it, and the topic's recent notifications.
+     */
+    private static class Topic {
 
-                // If cookie equals the hashcode of some previous news story or we are at the end of the news
-                // buffer then create sublist of notifications and send
-                if (notification.getKey() == Integer.parseInt(newsCookie) || i == notificationList.size() - 1) {
-                    List<Pair<Integer, String>> unseenNotifications = notificationList.subList(0, i);
-                    List<String> notificationsToSend = unseenNotifications.stream().map(Pair::getValue).collect(Collectors.toList());
+        private final AtomicReference<Waiting> _waiting = new AtomicReference<>(); // Top of the stack, null if empty
+        private final Set<EventStream> _streams = ConcurrentHashMap.newKeySet(); // Open event streams
+        private final NotificationHistory _history = new NotificationHistory(HISTORY_CAPACITY);
 
-                    int hashed = new HashCodeBuilder(37,39).append(notificationsToSend.get(0)).toHashCode(); // hashcode is now the most recent of this list
-                    asyncResponse.resume(new NewsItemDTO(Integer.toString(hashed), notificationsToSend));
-                    return true; // Did send updates
-                }
-            }
+        private void await(AsyncResponse response) {
+            Waiting top;
+            do {
+                top = _waiting.get();
+            } while (!_waiting.compareAndSet(top, new Waiting(response, top)));
+        }
+
+        // Detaches every waiting response at once; responses that arrive afterwards wait for the next notification
+        private Waiting drain() {
+            return _waiting.getAndSet(null);
         }
+    }
 
-        return false; //  Didn't send updates
+    private static class Waiting {
+
+        private final AsyncResponse _response;
+        private final Waiting _next;
+
+        private Waiting(AsyncResponse response, Waiting next) {
+            _response = response;
+            _next = next;
+        }
     }
 }
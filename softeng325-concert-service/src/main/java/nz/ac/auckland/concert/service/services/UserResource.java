@@ -9,7 +9,9 @@ import nz.ac.auckland.concert.service.domain.Mappers.BookingMapper;
 import nz.ac.auckland.concert.service.domain.Mappers.CreditCardMapper;
 import nz.ac.auckland.concert.service.domain.Mappers.UserMapper;
 import nz.ac.auckland.concert.service.domain.Token;
+import nz.ac.auckland.concert.service.domain.Types.TokenMode;
 import nz.ac.auckland.concert.service.domain.User;
+import nz.ac.auckland.concert.service.util.PageCursor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -38,11 +40,16 @@ public class UserResource {
     @Context // Information about the service hosted URI
     private static UriInfo _uri;
 
+    @Context // Caller resolved from the authorization token by AuthenticationFilter
+    private SecurityContext _securityContext;
+
     private final PersistenceManager _pm; // Persistence
+    private final AuthenticationManager _am; // Authorization token resolution
 
     public UserResource() {
 
         _pm = PersistenceManager.instance();
+        _am = AuthenticationManager.instance();
     }
 
     /**
@@ -64,14 +71,14 @@ public class UserResource {
             return Response.status(Response.Status.FORBIDDEN).entity(Messages.UNAUTHENTICATED_REQUEST).build();
         }
 
+        if (_securityContext.getUserPrincipal() == null) { // If token wasn't found or is expired return unauthorized
+            _logger.info("Denied user agent : " + userAgent + "; With expired/invalid authentication token: " + authToken);
+            return Response.status(Response.Status.UNAUTHORIZED).entity(Messages.BAD_AUTHENTICATON_TOKEN).build();
+        }
+
         EntityManager em = _pm.createEntityManager();
 
         try {
-            if (!tokenIsValid(authToken, em)) { // If token wasn't found or is expired return unauthorized
-                _logger.info("Denied user agent : " + userAgent + "; With expired/invalid authentication token: " + authToken);
-                return Response.status(Response.Status.UNAUTHORIZED).entity(Messages.BAD_AUTHENTICATON_TOKEN).build();
-            }
-
             User user = em.find(User.class, username);
             UserDTO returnUser = UserMapper.toDTO(user);
 
@@ -91,6 +98,7 @@ public class UserResource {
      * @param authToken
      * @param start
      * @param size
+     * @param cursor empty for the first page, else the cursor from the previous page's URI; offset paging if absent.
      * @return list of bookings with uri for next batch
      */
     @GET
@@ -101,32 +109,58 @@ public class UserResource {
             @HeaderParam("user-agent") String userAgent,
             @HeaderParam("Authorization") String authToken,
             @DefaultValue("0") @QueryParam("start") int start,
-            @DefaultValue("10") @QueryParam("size") int size) {
+            @DefaultValue("10") @QueryParam("size") int size,
+            @QueryParam("cursor") String cursor) {
 
         if (authToken == null) { // User has no access token
             _logger.info("Denied user agent: " + userAgent + "; No authentication token identified.");
             return Response.status(Response.Status.FORBIDDEN).entity(Messages.UNAUTHENTICATED_REQUEST).build();
         }
 
+        if (_securityContext.getUserPrincipal() == null) { // If token wasn't found or is expired return unauthorized
+            _logger.info("Denied user agent : " + userAgent + "; With expired/invalid authentication token: " + authToken);
+            return Response.status(Response.Status.UNAUTHORIZED).entity(Messages.BAD_AUTHENTICATON_TOKEN).build();
+        }
+
+        if (start < 0 || size < 0) { // Checked up front, so errors from loading the page are never mistaken for the client's
+            _logger.info("Denied user agent: " + userAgent + "; Illegal page start: " + start + " and size: " + size);
+            return Response.status(Response.Status.BAD_REQUEST).entity(Messages.ILLEGAL_PAGE_RANGE).build();
+        }
+
+        long afterId;
+        try {
+            afterId = cursor != null ? PageCursor.decode(cursor) : PageCursor.FIRST;
+        } catch (IllegalArgumentException e) {
+            _logger.info("Denied user agent: " + userAgent + "; Malformed page cursor: " + cursor);
+            return Response.status(Response.Status.BAD_REQUEST).entity(Messages.MALFORMED_PAGE_CURSOR).build();
+        }
+
         EntityManager em = _pm.createEntityManager();
 
         try {
-            if (!tokenIsValid(authToken, em)) { // If token wasn't found or is expired return unauthorized
-                _logger.info("Denied user agent : " + userAgent + "; With expired/invalid authentication token: " + authToken);
-                return Response.status(Response.Status.UNAUTHORIZED).entity(Messages.BAD_AUTHENTICATON_TOKEN).build();
+            List<Booking> bookings;
+            String next;
+            if (cursor != null) { // Keyset page: seek past the last id of the previous page
+                TypedQuery<Long> bookingQuery = em.createQuery("SELECT b.id FROM User u JOIN u.bookings b WHERE u.username = :username AND b.id > :afterId ORDER BY b.id", Long.class);
+                bookingQuery.setParameter("username", _securityContext.getUserPrincipal().getName());
+                bookingQuery.setParameter("afterId", afterId);
+                bookings = FetchPlans.findBookings(em, bookingQuery.setMaxResults(size).getResultList());
+                String nextCursor = bookings.isEmpty() ? cursor : PageCursor.encode(bookings.get(bookings.size() - 1).getId());
+                next = String.format("users/book?cursor=%s&size=%d", nextCursor, size);
+            } else {
+                TypedQuery<Long> bookingQuery = em.createQuery("SELECT b.id FROM User u JOIN u.bookings b WHERE u.username = :username ORDER BY b.id", Long.class);
+                bookingQuery.setParameter("username", _securityContext.getUserPrincipal().getName());
+                bookings = FetchPlans.findBookings(em, bookingQuery.setFirstResult(start).setMaxResults(size).getResultList());
+                next = String.format("users/book?start=%d&size=%d", start + size, size);
             }
 
-            TypedQuery<Booking> bookingQuery = em.createQuery("SELECT b FROM Token t JOIN t.user u JOIN u.bookings b WHERE t.token = :token", Booking.class);
-            bookingQuery.setParameter("token", authToken);
-            List<Booking> bookings = bookingQuery.setFirstResult(start).setMaxResults(size).getResultList();
-
             Set<BookingDTO> bookingDTOS = bookings.stream().map(BookingMapper::toDto).collect(Collectors.toSet());
             GenericEntity<Set<BookingDTO>> entity = new GenericEntity<Set<BookingDTO>>(bookingDTOS) {};
             _logger.info("Retrieved (" + bookings.size() + ") bookings; Sent to user agent: " + userAgent);
 
             return Response
                     .status(Response.Status.OK)
-                    .location(new URI(_uri.getBaseUri() + String.format("users/book?start=%d&size=%d", start + size, size))) // Next batch of bookings
+                    .location(new URI(_uri.getBaseUri() + next)) // Next batch of bookings
                     .entity(entity)
                     .build();
 
@@ -169,8 +203,14 @@ public class UserResource {
             User newUser = UserMapper.toDomain(userDto);
             em.persist(newUser);
 
-            String token = generateUserToken();
-            em.persist(new Token(newUser, token, LocalDateTime.now().plus(Duration.ofMinutes(AUTHENTICATION_TIMEOUT_MINUTES)))); // Tokens expiry id .now() plus timeout duration
+            String token;
+            LocalDateTime expiry = LocalDateTime.now().plus(Duration.ofMinutes(AUTHENTICATION_TIMEOUT_MINUTES)); // Tokens expiry id .now() plus timeout duration
+            if (_am.getTokenMode() == TokenMode.SIGNED) { // Signed tokens are not stored
+                token = _am.signToken(newUser.getUsername(), expiry);
+            } else {
+                token = generateUserToken();
+                em.persist(new Token(newUser, token, expiry));
+            }
 
             tx.commit();
             tx.begin();
@@ -218,18 +258,23 @@ public class UserResource {
             return Response.status(Response.Status.FORBIDDEN).entity(Messages.UNAUTHENTICATED_REQUEST).build();
         }
 
+        if (_securityContext.getUserPrincipal() == null) { // If token wasn't found or is expired return unauthorized
+            _logger.info("Denied user agent : " + userAgent + "; With expired/invalid authentication token: " + authToken);
+            return Response.status(Response.Status.UNAUTHORIZED).entity(Messages.BAD_AUTHENTICATON_TOKEN).build();
+        }
+
         EntityManager em = _pm.createEntityManager();
 
         try {
-            if (!tokenIsValid(authToken, em)) { // If token wasn't found or is expired return unauthorized
-                _logger.info("Denied user agent : " + userAgent + "; With expired/invalid authentication token: " + authToken);
-                return Response.status(Response.Status.UNAUTHORIZED).entity(Messages.BAD_AUTHENTICATON_TOKEN).build();
-            }
-
             EntityTransaction tx = em.getTransaction();
             tx.begin();
 
-            User foundUser = findUser(authToken, em);
+            User foundUser = em.find(User.class, _securityContext.getUserPrincipal().getName());
+            if (foundUser == null) { // Token is still valid but the user is gone, e.g. a SIGNED token issued before a reset
+                tx.rollback();
+                _logger.info("Denied user agent: " + userAgent + "; No user found for authenticated name: " + _securityContext.getUserPrincipal().getName());
+                return Response.status(Response.Status.UNAUTHORIZED).entity(Messages.UNAUTHENTICATED_REQUEST).build();
+            }
 
             foundUser.setCreditCard(CreditCardMapper.toDomain(creditCard));
             em.merge(foundUser);
@@ -278,6 +323,17 @@ public class UserResource {
                 return Response.status(Response.Status.UNAUTHORIZED).entity(Messages.AUTHENTICATE_USER_WITH_ILLEGAL_PASSWORD).build();
             }
 
+            if (_am.getTokenMode() == TokenMode.SIGNED) { // Signed tokens are stateless, so simply issue a fresh one
+                String tokenString = _am.signToken(foundUser.getUsername(), LocalDateTime.now().plus(Duration.ofMinutes(AUTHENTICATION_TIMEOUT_MINUTES)));
+                _logger.info("Created new signed token; For user: " + foundUser.getUsername() + "; Reply to user agent: " + userAgent);
+
+                return Response
+                        .status(Response.Status.OK)
+                        .header("Authorization", tokenString) // place auth token in header under Authorization
+                        .entity(UserMapper.toDTO(foundUser))
+                        .build();
+            }
+
             EntityTransaction tx = em.getTransaction();
             tx.begin(); // Ensure the act of reading token status then rewriting (if needed) is atomic - ensures no conflicting token generation
 
@@ -300,6 +356,7 @@ public class UserResource {
                 em.persist(tokenToPlace);
 
                 tx.commit();
+                _am.invalidateUser(foundUser.getUsername()); // After the commit, so a replaced token can't be cached again
                 _logger.info("Created new token [" + tokenToPlace + "]; For user: " + foundUser.getUsername());
             } else { // Token stored in db both exists and is still valid
                 tokenString = token.getToken(); // Add existing token to response
@@ -321,24 +378,6 @@ public class UserResource {
     // Private methods
 
 
-    private boolean tokenIsValid(String authToken, EntityManager em) {
-
-        // Retrieve corresponding token form the database
-        TypedQuery<Token> tokenQuery = em.createQuery("SELECT t FROM Token t WHERE t.token = :token", Token.class);
-        tokenQuery.setParameter("token", authToken);
-        Token token = tokenQuery.getSingleResult();
-
-        // True if token isn't null and its expiry time is after the current time
-        return token != null && !LocalDateTime.now().isAfter(token.getExpiry());
-    }
-
-    private User findUser(String authToken, EntityManager em) {
-
-        TypedQuery<User> userQuery = em.createQuery("SELECT u FROM Token t JOIN t.user u WHERE t.token = :token", User.class);
-        userQuery.setParameter("token", authToken);
-        return userQuery.getSingleResult();
-    }
-
     private String generateUserToken() {
         return UUID.randomUUID().toString();
     }
@@ -0,0 +1,46 @@
+package nz.ac.auckland.concert.service.util;
+
+import java.security.Principal;
+import java.time.LocalDateTime;
+
+/**
+ * Immutable principal of a request whose authorization token has been verified. Carries the username the token was
+ * issued to, so resources can look the user up by key rather than by token.
+ */
+public final class AuthenticatedUser implements Principal {
+
+    private final String _username;
+    private final String _token;
+    private final LocalDateTime _expiry;
+
+    public AuthenticatedUser(String username, String token, LocalDateTime expiry) {
+        _username = username;
+        _token = token;
+        _expiry = expiry;
+    }
+
+    @Override
+    public String getName() {
+        return _username;
+    }
+
+    public String getToken() {
+        return _token;
+    }
+
+    public LocalDateTime getExpiry() {
+        return _expiry;
+    }
+
+    /**
+     * Returns true if the token has expired at the given time.
+     */
+    public boolean isExpired(LocalDateTime now) {
+        return now.isAfter(_expiry);
+    }
+
+    @Override
+    public String toString() {
+        return _username;
+    }
+}
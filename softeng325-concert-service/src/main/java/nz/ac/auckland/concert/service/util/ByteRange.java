@@ -0,0 +1,94 @@
+package nz.ac.auckland.concert.service.util;
+
+/**
+ * Single byte range of a Range request header (RFC 7233), resolved against the length of the content it applies to.
+ * Only one range per request is supported; requests for several ranges are answered with the whole content, which
+ * the specification allows.
+ */
+public class ByteRange {
+
+    private static final String UNIT = "bytes=";
+
+    private final long _first;
+    private final long _last; // Inclusive
+    private final long _length; // Of the whole content
+
+    private ByteRange(long first, long last, long length) {
+        _first = first;
+        _last = last;
+        _length = length;
+    }
+
+    /**
+     * Parses a Range header.
+     * @param header value of the header, may be null.
+     * @param length length of the content the range applies to.
+     * @return the requested range, or null if the header is absent, malformed or asks for several ranges, in which
+     * case the whole content should be sent.
+     */
+    public static ByteRange parse(String header, long length) {
+        if (header == null || !header.startsWith(UNIT) || header.indexOf(',') >= 0) {
+            return null;
+        }
+
+        String spec = header.substring(UNIT.length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+
+        try {
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            if (first.isEmpty()) { // Suffix range, the final bytes of the content
+                long suffix = Long.parseLong(last);
+                return suffix < 0 ? null : new ByteRange(Math.max(0, length - suffix), length - 1, length);
+            }
+
+            long from = Long.parseLong(first);
+            long to = last.isEmpty() ? length - 1 : Long.parseLong(last);
+            if (from < 0 || to < from) {
+                return null;
+            }
+            return new ByteRange(from, Math.min(to, length - 1), length);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns whether any of the range lies within the content. Unsatisfiable ranges are answered with 416.
+     */
+    public boolean isSatisfiable() {
+        return _first < _length && _first <= _last;
+    }
+
+    public long getFirst() {
+        return _first;
+    }
+
+    public long getLast() {
+        return _last;
+    }
+
+    /**
+     * Returns the number of bytes in the range.
+     */
+    public long getCount() {
+        return _last - _first + 1;
+    }
+
+    /**
+     * Returns the value of the Content-Range header for this range.
+     */
+    public String toContentRange() {
+        return "bytes " + _first + "-" + _last + "/" + _length;
+    }
+
+    /**
+     * Returns the value of the Content-Range header for a 416 response to content of a length.
+     */
+    public static String unsatisfiedContentRange(long length) {
+        return "bytes */" + length;
+    }
+}
@@ -0,0 +1,106 @@
+package nz.ac.auckland.concert.service.util;
+
+import nz.ac.auckland.concert.common.dto.ConcertDTO;
+import nz.ac.auckland.concert.common.dto.PerformerDTO;
+import nz.ac.auckland.concert.common.types.PriceBand;
+
+import javax.ws.rs.core.EntityTag;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Entity tags derived from the content of catalogue DTOs. A tag changes exactly when the representation a client
+ * would receive changes, so a write to one concert or performer leaves the tags of every unaffected entity and page
+ * intact. Sets are digested in sorted order, so equal content always yields the same tag.
+ */
+public final class CatalogueTags {
+
+    private static final char SEPARATOR = '\u001f'; // Unit separator, keeps adjacent fields from running together
+
+    private CatalogueTags() {}
+
+    public static EntityTag ofConcert(ConcertDTO concert) {
+        return ofConcerts(Collections.singletonList(concert), null);
+    }
+
+    /**
+     * Returns the tag of a page of concerts.
+     * @param concerts
+     * @param next URI of the following page, which is part of the response.
+     */
+    public static EntityTag ofConcerts(List<ConcertDTO> concerts, String next) {
+        MessageDigest digest = sha256();
+        update(digest, next);
+        concerts.forEach(concert -> update(digest, concert));
+        return tag(digest);
+    }
+
+    public static EntityTag ofPerformer(PerformerDTO performer) {
+        return ofPerformers(Collections.singletonList(performer), null);
+    }
+
+    /**
+     * Returns the tag of a page of performers.
+     * @param performers
+     * @param next URI of the following page, which is part of the response.
+     */
+    public static EntityTag ofPerformers(List<PerformerDTO> performers, String next) {
+        MessageDigest digest = sha256();
+        update(digest, next);
+        performers.forEach(performer -> update(digest, performer));
+        return tag(digest);
+    }
+
+
+    // Private methods
+
+
+    private static void update(MessageDigest digest, ConcertDTO concert) {
+        update(digest, concert.getId());
+        update(digest, concert.getTitle());
+        update(digest, sorted(concert.getDates()));
+        for (PriceBand band : PriceBand.values()) {
+            update(digest, concert.getTicketPrice(band));
+        }
+        update(digest, sorted(concert.getPerformerIds()));
+    }
+
+    private static void update(MessageDigest digest, PerformerDTO performer) {
+        update(digest, performer.getId());
+        update(digest, performer.getName());
+        update(digest, performer.getImageName());
+        update(digest, performer.getGenre());
+        update(digest, sorted(performer.getConcertIds()));
+    }
+
+    private static void update(MessageDigest digest, Object field) {
+        digest.update(String.valueOf(field).getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) SEPARATOR);
+    }
+
+    private static <T extends Comparable<? super T>> Collection<T> sorted(Collection<T> values) {
+        return values == null ? null : new TreeSet<>(values);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) { // Every Java platform must support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static EntityTag tag(MessageDigest digest) {
+        byte[] hash = digest.digest();
+        StringBuilder hex = new StringBuilder();
+        for (int i = 0; i < 16; i++) { // 128 bits is plenty to tell versions apart
+            hex.append(String.format("%02x", hash[i]));
+        }
+        return new EntityTag(hex.toString());
+    }
+}
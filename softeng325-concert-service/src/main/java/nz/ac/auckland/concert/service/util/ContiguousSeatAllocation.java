@@ -0,0 +1,81 @@
+package nz.ac.auckland.concert.service.util;
+
+/**
+ * Best-available allocation that seats a group side by side in a single row. Rows are tried from the front of the
+ * band and the per-row longest free run index of SeatBand is used to skip rows that cannot fit the group, so
+ * finding the row costs one check per row. Within the chosen row the smallest free run that fits is used (keeping
+ * larger runs for larger groups), with the group placed as close to the centre of the row as that run allows.
+ *
+ * When no row can fit the whole group the request is handed to a fallback strategy.
+ */
+public class ContiguousSeatAllocation implements SeatAllocationStrategy {
+
+    private final SeatAllocationStrategy _fallback;
+
+    public ContiguousSeatAllocation() {
+        this(new FragmentedSeatAllocation());
+    }
+
+    /**
+     * @param fallback strategy used when no row has enough adjacent free seats, may be null to fail instead.
+     */
+    public ContiguousSeatAllocation(SeatAllocationStrategy fallback) {
+        _fallback = fallback;
+    }
+
+    @Override
+    public int[] allocate(int numberOfSeats, SeatBand band) {
+        if (numberOfSeats <= 0 || band.getAvailableCount() < numberOfSeats) {
+            return null;
+        }
+
+        for (int row = 0; row < band.getRowCount(); row++) {
+            if (band.getLongestRun(row) >= numberOfSeats) {
+                return allocateInRow(numberOfSeats, band, row);
+            }
+        }
+
+        return _fallback == null ? null : _fallback.allocate(numberOfSeats, band);
+    }
+
+
+    // Private methods
+
+
+    private int[] allocateInRow(int numberOfSeats, SeatBand band, int row) {
+        int rowStart = band.getRowStart(row);
+        int end = rowStart + band.getRowLength(row);
+        double rowCentre = rowStart + (band.getRowLength(row) - 1) / 2.0;
+
+        // Find the smallest run that fits, preferring the run nearest the centre of the row on ties
+        int bestStart = -1;
+        int bestLength = Integer.MAX_VALUE;
+        double bestDistance = Double.MAX_VALUE;
+
+        int position = band.nextFree(rowStart);
+        while (position < end) {
+            int runEnd = position;
+            while (runEnd < end && !band.isTaken(runEnd)) {
+                runEnd++;
+            }
+            int length = runEnd - position;
+            double distance = Math.abs(position + (length - 1) / 2.0 - rowCentre);
+            if (length >= numberOfSeats && (length < bestLength || (length == bestLength && distance < bestDistance))) {
+                bestStart = position;
+                bestLength = length;
+                bestDistance = distance;
+            }
+            position = band.nextFree(runEnd);
+        }
+
+        // Slide the group within the run towards the centre of the row
+        int start = (int) Math.round(rowCentre - (numberOfSeats - 1) / 2.0);
+        start = Math.max(bestStart, Math.min(start, bestStart + bestLength - numberOfSeats));
+
+        int[] positions = new int[numberOfSeats];
+        for (int i = 0; i < numberOfSeats; i++) {
+            positions[i] = start + i;
+        }
+        return positions;
+    }
+}
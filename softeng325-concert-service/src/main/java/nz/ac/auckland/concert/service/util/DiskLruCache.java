@@ -0,0 +1,241 @@
+package nz.ac.auckland.concert.service.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of byte content held in files under a local directory, bounded by the total size of those files. Once the
+ * bound is exceeded the least recently used entries are evicted and their files deleted. Each entry also keeps the
+ * validators of its content, so that it can be served without consulting the content's origin.
+ *
+ * Entries are read through a Snapshot, which holds the entry's file open. A snapshot stays readable even if its entry
+ * is evicted while it is being read, as the file is only unlinked and the open channel keeps its content.
+ */
+public class DiskLruCache {
+
+    private static final Logger _logger = LoggerFactory.getLogger(DiskLruCache.class);
+
+    private static final String FILE_PREFIX = "entry-";
+
+    private final Path _directory;
+    private final long _maxBytes;
+    private final LinkedHashMap<String, Entry> _entries; // Guarded by this
+    private long _bytes = 0; // Total length of all entries, guarded by this
+
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+    private final AtomicLong _evictions = new AtomicLong();
+
+    /**
+     * Creates a cache in a directory, deleting any entries left there by a previous instance.
+     * @param directory created if it does not exist.
+     * @param maxBytes upper bound on the total length of cached content.
+     */
+    public DiskLruCache(Path directory, long maxBytes) throws IOException {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("Maximum size must be positive");
+        }
+        _directory = Files.createDirectories(directory);
+        _maxBytes = maxBytes;
+        _entries = new LinkedHashMap<>(16, 0.75f, true); // Access order, so iteration starts at the least recently used
+
+        try (DirectoryStream<Path> leftovers = Files.newDirectoryStream(_directory, FILE_PREFIX + "*")) { // Not indexed
+            for (Path file : leftovers) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    /**
+     * Opens the entry cached for a key.
+     * @return Snapshot of the entry, which the caller must close, or null if nothing is cached for the key.
+     */
+    public synchronized Snapshot get(String key) throws IOException {
+        Entry entry = _entries.get(key);
+        if (entry != null) {
+            try {
+                Snapshot snapshot = new Snapshot(entry, FileChannel.open(entry._file, StandardOpenOption.READ));
+                _hits.incrementAndGet();
+                return snapshot;
+            } catch (NoSuchFileException e) { // Deleted behind the cache's back
+                _entries.remove(key);
+                _bytes -= entry._length;
+            }
+        }
+        _misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Returns whether anything is cached for a key, without counting a hit or miss or touching the entry.
+     */
+    public synchronized boolean contains(String key) {
+        return _entries.containsKey(key);
+    }
+
+    /**
+     * Caches content under a key, replacing any entry already cached for it, and opens the new entry. The content is
+     * written to disk before the cache is locked, so slow content only holds up its own caller.
+     * @param key
+     * @param content read to its end, but not closed.
+     * @param tag entity tag of the content.
+     * @param lastModified when the content last changed.
+     * @return Snapshot of the new entry, which the caller must close.
+     */
+    public Snapshot put(String key, InputStream content, String tag, Date lastModified) throws IOException {
+        Path file = Files.createTempFile(_directory, FILE_PREFIX, null);
+        long length;
+        try {
+            length = Files.copy(content, file, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            Files.deleteIfExists(file);
+            throw e;
+        }
+
+        Entry entry = new Entry(file, length, tag, lastModified);
+        synchronized (this) {
+            Snapshot snapshot = new Snapshot(entry, FileChannel.open(file, StandardOpenOption.READ)); // Before it can be evicted
+            Entry replaced = _entries.put(key, entry);
+            _bytes += length;
+            if (replaced != null) {
+                discard(replaced);
+            }
+            trim();
+            return snapshot;
+        }
+    }
+
+    /**
+     * Removes the entry cached for a key, if any.
+     */
+    public synchronized void remove(String key) {
+        Entry entry = _entries.remove(key);
+        if (entry != null) {
+            discard(entry);
+        }
+    }
+
+    public synchronized void clear() {
+        _entries.values().forEach(this::discard);
+        _entries.clear();
+    }
+
+    /**
+     * Returns the number of cached entries.
+     */
+    public synchronized int size() {
+        return _entries.size();
+    }
+
+    /**
+     * Returns the total length of cached content.
+     */
+    public synchronized long getBytes() {
+        return _bytes;
+    }
+
+    public long getMaxBytes() {
+        return _maxBytes;
+    }
+
+    public long getHitCount() {
+        return _hits.get();
+    }
+
+    public long getMissCount() {
+        return _misses.get();
+    }
+
+    public long getEvictionCount() {
+        return _evictions.get();
+    }
+
+    /**
+     * Open, read only view of a cached entry.
+     */
+    public static class Snapshot implements Closeable {
+
+        private final Entry _entry;
+        private final FileChannel _channel;
+
+        private Snapshot(Entry entry, FileChannel channel) {
+            _entry = entry;
+            _channel = channel;
+        }
+
+        public FileChannel getChannel() {
+            return _channel;
+        }
+
+        public long getLength() {
+            return _entry._length;
+        }
+
+        public String getTag() {
+            return _entry._tag;
+        }
+
+        public Date getLastModified() {
+            return _entry._lastModified;
+        }
+
+        @Override
+        public void close() throws IOException {
+            _channel.close();
+        }
+    }
+
+
+    // Private methods
+
+
+    // Evicts least recently used entries until the cache is back within its bound
+    private void trim() {
+        Iterator<Entry> eldest = _entries.values().iterator();
+        while (_bytes > _maxBytes && eldest.hasNext()) {
+            Entry entry = eldest.next();
+            eldest.remove();
+            discard(entry);
+            _evictions.incrementAndGet();
+        }
+    }
+
+    private void discard(Entry entry) {
+        _bytes -= entry._length;
+        try {
+            Files.deleteIfExists(entry._file);
+        } catch (IOException e) {
+            _logger.warn("Could not delete cache file " + entry._file, e);
+        }
+    }
+
+    private static class Entry {
+
+        private final Path _file;
+        private final long _length;
+        private final String _tag;
+        private final Date _lastModified;
+
+        private Entry(Path file, long length, String tag, Date lastModified) {
+            _file = file;
+            _length = length;
+            _tag = tag;
+            _lastModified = lastModified;
+        }
+    }
+}
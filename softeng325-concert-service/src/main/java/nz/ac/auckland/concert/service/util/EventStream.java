@@ -0,0 +1,160 @@
+package nz.ac.auckland.concert.service.util;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Response body that keeps a connection open and writes every event pushed to it in the Server-Sent Events format
+ * (text/event-stream), each with its sequence number as event id so that a client that reconnects can resume from
+ * the last event it received. Events pushed while the body is not yet being written, or faster than the client
+ * reads them, wait in a bounded queue; a client that falls a whole queue behind is disconnected, and catches up from
+ * the notification history when it reconnects.
+ *
+ * The body is written by the container thread that serves the request, which blocks between events, so the number
+ * of streams open at once must be bounded by the caller. A comment is sent when the stream has been idle for a
+ * while, so that a client which has gone away is noticed.
+ */
+public class EventStream implements StreamingOutput {
+
+    public static final String MEDIA_TYPE = "text/event-stream";
+    public static final int BUSY_RETRY_SECONDS = 5; // Suggested wait before retrying when no stream can be opened
+
+    private static final long HEARTBEAT_SECONDS = 15;
+    private static final long RETRY_MILLIS = 1000; // Reconnection delay suggested to clients
+
+    private static final Event CLOSED = new Event(-1, null);
+
+    private final BlockingQueue<Event> _events;
+    private final Queue<Event> _replay; // Sent before any pushed event
+    private final Consumer<EventStream> _onClose;
+    private final AtomicBoolean _writing = new AtomicBoolean(); // Set once the container starts writing
+    private final AtomicBoolean _finished = new AtomicBoolean(); // Set once _onClose has run
+    private volatile boolean _closed = false;
+
+    /**
+     * @param capacity number of pushed events that may wait to be written.
+     * @param onClose run once when the stream has ended, for whatever reason.
+     */
+    public EventStream(int capacity, Consumer<EventStream> onClose) {
+        _events = new ArrayBlockingQueue<>(capacity + 1); // Room for CLOSED
+        _replay = new ConcurrentLinkedQueue<>();
+        _onClose = onClose;
+    }
+
+    /**
+     * Queues an event that was published before the stream opened, to be sent ahead of everything pushed. Replayed
+     * events must be added in order, before the stream is handed to the container.
+     */
+    public void replay(long id, String data) {
+        _replay.add(new Event(id, data));
+    }
+
+    /**
+     * Queues an event for sending. Events with an id no greater than the last replayed event were published before
+     * the stream opened and are skipped, as the replay already carries them.
+     * @return false if the stream has ended, including when it is ended now because its client has fallen too far
+     * behind.
+     */
+    public boolean push(long id, String data) {
+        if (_closed) {
+            return false;
+        }
+        if (!_events.offer(new Event(id, data))) {
+            close();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Ends the stream once the event being written, if any, has been sent.
+     */
+    public void close() {
+        _closed = true;
+        _events.clear();
+        _events.offer(CLOSED); // Wakes the writer
+        if (!_writing.get()) { // No writer to end it, e.g. closed before the container got to it
+            finish();
+        }
+    }
+
+    public boolean isClosed() {
+        return _closed;
+    }
+
+    @Override
+    public void write(OutputStream output) throws IOException, WebApplicationException {
+        _writing.set(true);
+        Writer writer = new OutputStreamWriter(output, StandardCharsets.UTF_8);
+        long replayedUpTo = NotificationHistory.NONE;
+        try {
+            if (_closed) { // Closed before the container got to it, and already finished
+                return;
+            }
+            writer.write("retry: " + RETRY_MILLIS + "\n\n");
+            for (Event event = _replay.poll(); event != null; event = _replay.poll()) {
+                send(writer, event);
+                replayedUpTo = Math.max(replayedUpTo, event._id);
+            }
+            writer.flush();
+
+            while (!_closed) {
+                Event event = _events.poll(HEARTBEAT_SECONDS, TimeUnit.SECONDS);
+                if (event == CLOSED) {
+                    break;
+                } else if (event == null) { // Idle, check the client is still there
+                    writer.write(": keep-alive\n\n");
+                } else if (event._id > replayedUpTo) { // Only the replay is skipped, live events may arrive in any order
+                    send(writer, event);
+                }
+                writer.flush();
+            }
+        } catch (InterruptedException e) { // Container shutting down
+            Thread.currentThread().interrupt();
+        } finally {
+            _closed = true;
+            finish();
+        }
+    }
+
+
+    // Private methods
+
+
+    private void finish() {
+        if (_finished.compareAndSet(false, true)) {
+            _onClose.accept(this);
+        }
+    }
+
+    private static void send(Writer writer, Event event) throws IOException {
+        writer.write("id: " + event._id + "\n");
+        for (String line : event._data.split("\r\n|\r|\n", -1)) { // A line break in the data would end the field
+            writer.write("data: " + line + "\n");
+        }
+        writer.write("\n");
+    }
+
+    private static class Event {
+
+        private final long _id;
+        private final String _data;
+
+        private Event(long id, String data) {
+            _id = id;
+            _data = data;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package nz.ac.auckland.concert.service.util;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Fills a request from whatever free seats are left in a band, taking the longest runs of adjacent free seats
+ * first so the group is split across as few runs as possible. Used when no single row can seat the whole group.
+ */
+public class FragmentedSeatAllocation implements SeatAllocationStrategy {
+
+    @Override
+    public int[] allocate(int numberOfSeats, SeatBand band) {
+        if (numberOfSeats <= 0 || band.getAvailableCount() < numberOfSeats) {
+            return null;
+        }
+
+        // Collect every run of free seats as {start, length}, front rows first
+        List<int[]> runs = new ArrayList<>();
+        for (int row = 0; row < band.getRowCount(); row++) {
+            if (band.getLongestRun(row) == 0) { // Row is full
+                continue;
+            }
+            int end = band.getRowStart(row) + band.getRowLength(row);
+            int position = band.nextFree(band.getRowStart(row));
+            while (position < end) {
+                int runEnd = position;
+                while (runEnd < end && !band.isTaken(runEnd)) {
+                    runEnd++;
+                }
+                runs.add(new int[]{position, runEnd - position});
+                position = band.nextFree(runEnd);
+            }
+        }
+        runs.sort(Comparator.comparingInt((int[] run) -> run[1]).reversed()); // Stable, so ties keep front-to-back order
+
+        int[] positions = new int[numberOfSeats];
+        int allocated = 0;
+        for (int[] run : runs) {
+            for (int i = 0; i < run[1] && allocated < numberOfSeats; i++) {
+                positions[allocated++] = run[0] + i;
+            }
+            if (allocated == numberOfSeats) {
+                break;
+            }
+        }
+        return positions;
+    }
+}
@@ -0,0 +1,23 @@
+package nz.ac.auckland.concert.service.util;
+
+import java.io.IOException;
+
+/**
+ * Source of performer images. Every store serves images from local files, so that they can be written to responses
+ * without being copied through the heap.
+ */
+public interface ImageStore {
+
+    /**
+     * Opens an image.
+     * @param imageName
+     * @return the image, which the caller must close.
+     * @throws java.nio.file.NoSuchFileException if the store has no such image.
+     */
+    StoredImage open(String imageName) throws IOException;
+
+    /**
+     * Drops anything held locally for an image that may since have changed at its origin.
+     */
+    void evict(String imageName);
+}
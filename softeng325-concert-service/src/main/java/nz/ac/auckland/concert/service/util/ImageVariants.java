@@ -0,0 +1,196 @@
+package nz.ac.auckland.concert.service.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.imageio.ImageIO;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Produces and caches resized copies of images. A variant is rendered once, on a bounded pool of worker threads, and
+ * cached on disk keyed by the image, its version and the requested size, so a replaced image never serves an old
+ * variant and old variants simply age out of the cache. Concurrent requests for the same variant share one render.
+ * The version each image's variants were last opened for is remembered, so that a cached variant can be served
+ * without opening the original again until the image is forgotten.
+ *
+ * Rendering is CPU bound, so the pool is small and its queue bounded; once the queue is full further renders are
+ * refused rather than queued behind minutes of work.
+ */
+public class ImageVariants {
+
+    private static final Logger _logger = LoggerFactory.getLogger(ImageVariants.class);
+
+    private final DiskLruCache _cache;
+    private final ThreadPoolExecutor _workers;
+    private final SingleFlight<String, Void> _renders; // Keyed by cache key
+    private final ConcurrentMap<String, String> _tags = new ConcurrentHashMap<>(); // Image name to version of its variants
+    private final AtomicLong _rejected = new AtomicLong();
+
+    /**
+     * @param cache where variants are kept.
+     * @param workers number of renders run at once.
+     * @param queueCapacity number of renders that may wait for a worker.
+     */
+    public ImageVariants(DiskLruCache cache, int workers, int queueCapacity) {
+        AtomicInteger threads = new AtomicInteger();
+        _cache = cache;
+        _workers = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), runnable -> {
+            Thread thread = new Thread(runnable, "image-variants-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        _renders = new SingleFlight<>();
+    }
+
+    /**
+     * Opens a variant of an image no larger than a size, rendering it if it is not cached yet. Images that already
+     * fit within the size are passed through unchanged.
+     * @param imageName
+     * @param original the full size image, which remains the caller's to close.
+     * @param size longest side of the variant, in pixels.
+     * @return the variant, which the caller must close.
+     * @throws IOException if the variant could not be rendered, including when too many renders are waiting.
+     */
+    public StoredImage open(String imageName, StoredImage original, int size) throws IOException {
+        String key = key(imageName, original.getTag(), size);
+
+        DiskLruCache.Snapshot snapshot = _cache.get(key);
+        if (snapshot == null) {
+            _renders.execute(key, () -> {
+                if (!_cache.contains(key)) { // Another render may have finished since the cache was checked
+                    submit(key, original, size).close();
+                }
+                return null;
+            });
+
+            snapshot = _cache.get(key);
+            if (snapshot == null) { // Evicted again already
+                snapshot = submit(key, original, size);
+            }
+        }
+        _tags.put(imageName, original.getTag());
+        return new StoredImage(snapshot.getChannel(), snapshot.getLength(), snapshot.getTag(), snapshot.getLastModified());
+    }
+
+    /**
+     * Opens a cached variant of the version of an image that variants were last opened for, without the original.
+     * @param imageName
+     * @param size longest side of the variant, in pixels.
+     * @return the variant, which the caller must close, or null if it has to be opened from the original instead.
+     */
+    public StoredImage openCached(String imageName, int size) throws IOException {
+        String tag = _tags.get(imageName);
+        if (tag == null) { // Never opened, or forgotten since
+            return null;
+        }
+
+        DiskLruCache.Snapshot snapshot = _cache.get(key(imageName, tag, size));
+        if (snapshot == null) {
+            return null;
+        }
+        return new StoredImage(snapshot.getChannel(), snapshot.getLength(), snapshot.getTag(), snapshot.getLastModified());
+    }
+
+    /**
+     * Forgets which version of an image its variants were opened for, so that the next request opens the original and
+     * serves variants of whatever version it is by then. Called when the image may have been replaced.
+     */
+    public void forget(String imageName) {
+        _tags.remove(imageName);
+    }
+
+    public DiskLruCache getCache() {
+        return _cache;
+    }
+
+    /**
+     * Returns the number of renders run.
+     */
+    public long getRenderCount() {
+        return _renders.getExecutionCount();
+    }
+
+    /**
+     * Returns the number of renders refused because the queue was full.
+     */
+    public long getRejectedCount() {
+        return _rejected.get();
+    }
+
+
+    // Private methods
+
+
+    private static String key(String imageName, String tag, int size) {
+        return imageName + "/" + tag + "/" + size;
+    }
+
+    // Renders on a worker and waits for it, so the caller's thread is not the one decoding
+    private DiskLruCache.Snapshot submit(String key, StoredImage original, int size) throws IOException {
+        Future<DiskLruCache.Snapshot> render;
+        try {
+            render = _workers.submit(() -> render(key, original, size));
+        } catch (RejectedExecutionException e) {
+            _rejected.incrementAndGet();
+            throw new IOException("Too many image variants waiting to be rendered");
+        }
+
+        try {
+            return render.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            render.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for an image variant");
+        }
+    }
+
+    private DiskLruCache.Snapshot render(String key, StoredImage original, int size) throws IOException {
+        String tag = original.getTag() + "-" + size;
+
+        BufferedImage image = ImageIO.read(original.newInputStream());
+        if (image == null) {
+            throw new IOException("Unrecognised image format for " + key);
+        }
+        if (Math.max(image.getWidth(), image.getHeight()) <= size) { // Already small enough, never scaled up
+            return _cache.put(key, original.newInputStream(), tag, original.getLastModified());
+        }
+
+        double scale = (double) size / Math.max(image.getWidth(), image.getHeight());
+        int width = Math.max(1, (int) Math.round(image.getWidth() * scale));
+        int height = Math.max(1, (int) Math.round(image.getHeight() * scale));
+
+        BufferedImage variant = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D graphics = variant.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            graphics.drawImage(image, 0, 0, width, height, null);
+        } finally {
+            graphics.dispose();
+        }
+
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(variant, "png", png);
+        _logger.info("Rendered " + key + " at " + width + "x" + height + " (" + png.size() + " bytes)");
+        return _cache.put(key, new ByteArrayInputStream(png.toByteArray()), tag, original.getLastModified());
+    }
+}
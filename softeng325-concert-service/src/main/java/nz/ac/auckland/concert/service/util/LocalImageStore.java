@@ -0,0 +1,47 @@
+package nz.ac.auckland.concert.service.util;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Date;
+
+/**
+ * Image store that serves the files of a local directory, named by their image name. Entity tags are derived from
+ * each file's size and modification time, so replacing a file changes its tag.
+ */
+public class LocalImageStore implements ImageStore {
+
+    private final Path _directory;
+
+    public LocalImageStore(Path directory) {
+        _directory = directory.toAbsolutePath().normalize();
+    }
+
+    @Override
+    public StoredImage open(String imageName) throws IOException {
+        Path file = _directory.resolve(imageName).normalize();
+        if (!_directory.equals(file.getParent())) { // Names must not reach outside the directory
+            throw new NoSuchFileException(imageName);
+        }
+
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            long modified = attributes.lastModifiedTime().toMillis() / 1000 * 1000; // HTTP dates carry whole seconds
+            String tag = Long.toHexString(modified) + "-" + Long.toHexString(attributes.size());
+            return new StoredImage(channel, channel.size(), tag, new Date(modified));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void evict(String imageName) {
+        // Nothing is held apart from the files themselves
+    }
+}
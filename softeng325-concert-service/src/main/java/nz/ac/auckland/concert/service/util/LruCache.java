@@ -0,0 +1,81 @@
+package nz.ac.auckland.concert.service.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size bounded map that evicts its least recently used entry once it is full, and counts hits, misses and
+ * evictions. All operations are synchronized, so an instance may be shared between request threads.
+ */
+public class LruCache<K, V> {
+
+    private final int _capacity;
+    private final LinkedHashMap<K, V> _entries;
+
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+    private final AtomicLong _evictions = new AtomicLong();
+
+    public LruCache(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        _capacity = capacity;
+        _entries = new LinkedHashMap<K, V>(16, 0.75f, true) { // Access order, so the eldest entry is least recently used
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                if (size() > _capacity) {
+                    _evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returns the value cached for a key, or null if there is none.
+     */
+    public synchronized V get(K key) {
+        V value = _entries.get(key);
+        if (value == null) {
+            _misses.incrementAndGet();
+        } else {
+            _hits.incrementAndGet();
+        }
+        return value;
+    }
+
+    public synchronized void put(K key, V value) {
+        _entries.put(key, value);
+    }
+
+    public synchronized void remove(K key) {
+        _entries.remove(key);
+    }
+
+    public synchronized void clear() {
+        _entries.clear();
+    }
+
+    public synchronized int size() {
+        return _entries.size();
+    }
+
+    public int getCapacity() {
+        return _capacity;
+    }
+
+    public long getHitCount() {
+        return _hits.get();
+    }
+
+    public long getMissCount() {
+        return _misses.get();
+    }
+
+    public long getEvictionCount() {
+        return _evictions.get();
+    }
+}
@@ -0,0 +1,75 @@
+package nz.ac.auckland.concert.service.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Fixed capacity ring buffer of the most recent notifications of a topic. Every notification is given the next
+ * sequence number, starting at 1, and is stored in the slot its sequence number maps to, so publishing overwrites
+ * the oldest notification in constant time. A subscriber that has seen everything up to some sequence number finds
+ * exactly the notifications it missed by index arithmetic, without searching.
+ */
+public class NotificationHistory {
+
+    public static final long NONE = 0; // Sequence number of "nothing seen yet"
+
+    private final String[] _notifications;
+    private long _latest = NONE; // Sequence number of the newest notification, guarded by this
+
+    public NotificationHistory(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        _notifications = new String[capacity];
+    }
+
+    /**
+     * Stores a notification, overwriting the oldest one once the buffer is full.
+     * @return the sequence number of the notification.
+     */
+    public synchronized long append(String notification) {
+        _latest++;
+        _notifications[slot(_latest)] = notification;
+        return _latest;
+    }
+
+    /**
+     * Returns the notifications published after a sequence number, newest first. Notifications that have already
+     * been overwritten are lost; so is everything, when the sequence number is ahead of this history, as it was
+     * handed out before a restart.
+     * @param seen sequence number of the newest notification the subscriber has seen.
+     */
+    public synchronized List<String> since(long seen) {
+        if (seen == _latest) {
+            return Collections.emptyList();
+        }
+
+        long oldest = Math.max(NONE + 1, _latest - _notifications.length + 1); // Oldest still held
+        long first = seen > _latest ? oldest : Math.max(seen + 1, oldest);
+        List<String> missed = new ArrayList<>((int) (_latest - first + 1));
+        for (long sequence = _latest; sequence >= first; sequence--) {
+            missed.add(_notifications[slot(sequence)]);
+        }
+        return missed;
+    }
+
+    /**
+     * Returns the sequence number of the newest notification, or NONE if nothing has been published.
+     */
+    public synchronized long getLatest() {
+        return _latest;
+    }
+
+    public int getCapacity() {
+        return _notifications.length;
+    }
+
+
+    // Private methods
+
+
+    private int slot(long sequence) {
+        return (int) (sequence % _notifications.length);
+    }
+}
@@ -0,0 +1,42 @@
+package nz.ac.auckland.concert.service.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Opaque cursors for keyset pagination. A cursor encodes the id of the last entity of a page, and the next page is
+ * the entities with a greater id in id order, so every page costs an index seek regardless of how deep it is and
+ * inserts between requests neither skip nor repeat entities. The empty cursor denotes the first page.
+ */
+public final class PageCursor {
+
+    private static final String PREFIX = "id:";
+
+    // Lower bound below every entity id, used for the first page
+    public static final long FIRST = Long.MIN_VALUE;
+
+    private PageCursor() {}
+
+    /**
+     * Returns the cursor of the page following the entity with the given id.
+     */
+    public static String encode(long lastId) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString((PREFIX + lastId).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Returns the id that the page after a cursor starts after.
+     * @throws IllegalArgumentException if the cursor was not issued by encode().
+     */
+    public static long decode(String cursor) {
+        if (cursor.isEmpty()) {
+            return FIRST;
+        }
+
+        String decoded = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+        if (!decoded.startsWith(PREFIX)) {
+            throw new IllegalArgumentException("Malformed page cursor: " + cursor);
+        }
+        return Long.parseLong(decoded.substring(PREFIX.length())); // NumberFormatException is an IllegalArgumentException
+    }
+}
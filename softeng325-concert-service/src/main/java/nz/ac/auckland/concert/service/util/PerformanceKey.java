@@ -0,0 +1,56 @@
+package nz.ac.auckland.concert.service.util;
+
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+
+import java.time.LocalDateTime;
+
+/**
+ * Immutable key identifying a single performance of a concert, i.e. a concert id paired with one of the dates
+ * that concert is scheduled on. Seat availability is tracked per performance.
+ */
+public final class PerformanceKey {
+
+    private final long _concertId;
+    private final LocalDateTime _date;
+
+    public PerformanceKey(long concertId, LocalDateTime date) {
+        _concertId = concertId;
+        _date = date;
+    }
+
+    public long getConcertId() {
+        return _concertId;
+    }
+
+    public LocalDateTime getDate() {
+        return _date;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof PerformanceKey))
+            return false;
+        if (obj == this)
+            return true;
+
+        PerformanceKey rhs = (PerformanceKey) obj;
+        return new EqualsBuilder().
+                append(_concertId, rhs._concertId).
+                append(_date, rhs._date).
+                isEquals();
+    }
+
+    @Override
+    public int hashCode() {
+        return new HashCodeBuilder(17, 31).
+                append(_concertId).
+                append(_date).
+                hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "concert id: " + _concertId + " on date: " + _date;
+    }
+}
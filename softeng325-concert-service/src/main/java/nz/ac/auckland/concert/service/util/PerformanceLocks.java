@@ -0,0 +1,45 @@
+package nz.ac.auckland.concert.service.util;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Fixed set of striped locks over performances. Every performance maps to one stripe, so work on the same
+ * performance is serialised while work on performances in different stripes proceeds in parallel. Stripes are fair
+ * locks, so waiting requests are served in arrival order instead of failing.
+ */
+public class PerformanceLocks {
+
+    private final ReentrantLock[] _stripes;
+
+    /**
+     * @param stripes number of locks, rounded up to a power of two.
+     */
+    public PerformanceLocks(int stripes) {
+        if (stripes <= 0) {
+            throw new IllegalArgumentException("Number of stripes must be positive");
+        }
+        int size = Integer.highestOneBit(stripes);
+        if (size < stripes) {
+            size <<= 1;
+        }
+
+        _stripes = new ReentrantLock[size];
+        for (int i = 0; i < size; i++) {
+            _stripes[i] = new ReentrantLock(true);
+        }
+    }
+
+    /**
+     * Returns the lock guarding a performance. The same performance always gets the same lock.
+     */
+    public Lock get(PerformanceKey key) {
+        int hash = key.hashCode();
+        hash ^= hash >>> 16; // Spread the high bits into the stripe index
+        return _stripes[hash & (_stripes.length - 1)];
+    }
+
+    public int size() {
+        return _stripes.length;
+    }
+}
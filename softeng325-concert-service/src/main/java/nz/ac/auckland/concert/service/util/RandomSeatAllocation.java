@@ -0,0 +1,35 @@
+package nz.ac.auckland.concert.service.util;
+
+import java.util.Random;
+
+/**
+ * The service's original allocation behaviour: starting from a random free seat, take free seats in band order
+ * and wrap around to the front of the band. Groups are frequently split across rows.
+ */
+public class RandomSeatAllocation implements SeatAllocationStrategy {
+
+    private final Random _random = new Random();
+
+    @Override
+    public int[] allocate(int numberOfSeats, SeatBand band) {
+        int available = band.getAvailableCount();
+        if (numberOfSeats <= 0 || available < numberOfSeats) {
+            return null;
+        }
+
+        int position = band.nextFree(0);
+        for (int skip = _random.nextInt(available); skip > 0; skip--) {
+            position = band.nextFree(position + 1);
+        }
+
+        int[] positions = new int[numberOfSeats];
+        for (int i = 0; i < numberOfSeats; i++) {
+            if (position >= band.size()) { // Wrap around to the start of the band
+                position = band.nextFree(0);
+            }
+            positions[i] = position;
+            position = band.nextFree(position + 1);
+        }
+        return positions;
+    }
+}
@@ -0,0 +1,100 @@
+package nz.ac.auckland.concert.service.util;
+
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.NoSuchFileException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Image store backed by an S3 bucket. Images are downloaded into a disk cache the first time they are opened and
+ * served from the cached file afterwards. Concurrent requests for an image that is not cached yet, such as the burst
+ * that follows a new image being announced to subscribers, share a single download.
+ */
+public class S3ImageStore implements ImageStore {
+
+    private static final Logger _logger = LoggerFactory.getLogger(S3ImageStore.class);
+
+    private final AmazonS3 _s3; // Thread safe, shared by all requests
+    private final String _bucket;
+    private final DiskLruCache _cache;
+    private final SingleFlight<String, Void> _downloads; // Keyed by image name
+    private final AtomicLong _downloadCount = new AtomicLong();
+
+    public S3ImageStore(AmazonS3 s3, String bucket, DiskLruCache cache) {
+        _s3 = s3;
+        _bucket = bucket;
+        _cache = cache;
+        _downloads = new SingleFlight<>();
+    }
+
+    @Override
+    public StoredImage open(String imageName) throws IOException {
+        DiskLruCache.Snapshot snapshot = _cache.get(imageName);
+        if (snapshot == null) {
+            _downloads.execute(imageName, () -> {
+                if (!_cache.contains(imageName)) { // Another download may have finished since the cache was checked
+                    download(imageName).close();
+                }
+                return null;
+            });
+
+            snapshot = _cache.get(imageName);
+            if (snapshot == null) { // Evicted again already, e.g. as the image is larger than the whole cache
+                snapshot = download(imageName);
+            }
+        }
+        return new StoredImage(snapshot.getChannel(), snapshot.getLength(), snapshot.getTag(), snapshot.getLastModified());
+    }
+
+    @Override
+    public void evict(String imageName) {
+        _cache.remove(imageName);
+    }
+
+    public DiskLruCache getCache() {
+        return _cache;
+    }
+
+    /**
+     * Returns the number of downloads from S3 that were shared with concurrent requests for the same image, and so
+     * saved.
+     */
+    public long getCoalescedDownloadCount() {
+        return _downloads.getCoalescedCount();
+    }
+
+    /**
+     * Returns the number of images downloaded from S3.
+     */
+    public long getDownloadCount() {
+        return _downloadCount.get();
+    }
+
+
+    // Private methods
+
+
+    private DiskLruCache.Snapshot download(String imageName) throws IOException {
+        _downloadCount.incrementAndGet();
+        try (S3Object object = _s3.getObject(_bucket, imageName)) {
+            ObjectMetadata metadata = object.getObjectMetadata();
+            DiskLruCache.Snapshot snapshot = _cache.put(imageName, object.getObjectContent(), metadata.getETag(), metadata.getLastModified());
+            _logger.info("Downloaded " + imageName + " (" + snapshot.getLength() + " bytes) from AWS into the image cache");
+            return snapshot;
+        } catch (AmazonS3Exception e) {
+            if (e.getStatusCode() == 404 || e.getStatusCode() == 403) { // S3 denies keys it would not list
+                throw new NoSuchFileException(imageName);
+            }
+            throw new IOException("Could not download " + imageName, e);
+        } catch (SdkClientException e) {
+            throw new IOException("Could not download " + imageName, e);
+        }
+    }
+}
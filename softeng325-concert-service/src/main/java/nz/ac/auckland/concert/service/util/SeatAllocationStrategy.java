@@ -0,0 +1,16 @@
+package nz.ac.auckland.concert.service.util;
+
+/**
+ * Strategy for choosing which free seats of a price band are given to a reservation. Implementations only choose
+ * seats, taking them is left to the caller (SeatInventory) so that the choice and the take happen atomically.
+ */
+public interface SeatAllocationStrategy {
+
+    /**
+     * Chooses a number of free seats within a band.
+     * @param numberOfSeats
+     * @param band availability of the band being reserved from.
+     * @return positions of the chosen seats within the band, or null if the seats could not be allocated.
+     */
+    int[] allocate(int numberOfSeats, SeatBand band);
+}
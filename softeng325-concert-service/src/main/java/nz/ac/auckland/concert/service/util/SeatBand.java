@@ -0,0 +1,181 @@
+package nz.ac.auckland.concert.service.util;
+
+import nz.ac.auckland.concert.common.dto.SeatDTO;
+import nz.ac.auckland.concert.common.types.PriceBand;
+import nz.ac.auckland.concert.common.types.SeatRow;
+import nz.ac.auckland.concert.utility.TheatreLayout;
+
+import java.util.*;
+
+/**
+ * Availability of the seats in one price band of one performance. Seats are addressed by their position in the
+ * band, laid out row by row from the front of the theatre. Alongside the bitset of taken seats the band keeps an
+ * index of the longest run of free seats in every row, so allocation strategies can find a row that fits a group
+ * by looking at each row once rather than at every seat.
+ *
+ * Not thread safe, instances are guarded by the owning SeatInventory.
+ */
+public class SeatBand {
+
+    // Layout of each price band, shared by every performance
+    private static final Map<PriceBand, Layout> LAYOUTS = new EnumMap<>(PriceBand.class);
+
+    // Position within its band of every seat, by the seat's dense TheatreLayout index
+    private static final int[] POSITIONS = new int[TheatreLayout.SEAT_INDEX_COUNT];
+
+    static {
+        Arrays.fill(POSITIONS, -1);
+        for (PriceBand band : PriceBand.values()) {
+            Layout layout = new Layout(band);
+            LAYOUTS.put(band, layout);
+            for (int position = 0; position < layout._seats.length; position++) {
+                POSITIONS[TheatreLayout.getSeatIndex(layout._seats[position])] = position;
+            }
+        }
+    }
+
+    private final PriceBand _band;
+    private final Layout _layout;
+
+    private final BitSet _taken;
+    private final int[] _longestRuns; // Longest run of free seats in each row
+    private final BitSet _staleRows; // Rows whose longest run must be recomputed
+
+    public SeatBand(PriceBand band) {
+        _band = band;
+        _layout = LAYOUTS.get(band);
+
+        _taken = new BitSet(_layout._seats.length);
+        _longestRuns = _layout._rowLengths.clone();
+        _staleRows = new BitSet(_layout._rows.length);
+    }
+
+    public PriceBand getPriceBand() {
+        return _band;
+    }
+
+    public int size() {
+        return _layout._seats.length;
+    }
+
+    public int getAvailableCount() {
+        return _layout._seats.length - _taken.cardinality();
+    }
+
+    public int getRowCount() {
+        return _layout._rows.length;
+    }
+
+    public SeatRow getRow(int row) {
+        return _layout._rows[row];
+    }
+
+    public int getRowStart(int row) {
+        return _layout._rowStarts[row];
+    }
+
+    public int getRowLength(int row) {
+        return _layout._rowLengths[row];
+    }
+
+    /**
+     * Returns the length of the longest run of adjacent free seats in a row.
+     */
+    public int getLongestRun(int row) {
+        if (_staleRows.get(row)) {
+            _longestRuns[row] = scanLongestRun(row);
+            _staleRows.clear(row);
+        }
+        return _longestRuns[row];
+    }
+
+    public boolean isTaken(int position) {
+        return _taken.get(position);
+    }
+
+    /**
+     * Returns the first free position at or after the given position, or size() if there is none.
+     */
+    public int nextFree(int position) {
+        return Math.min(_taken.nextClearBit(position), size());
+    }
+
+    public void take(int position) {
+        _taken.set(position);
+        _staleRows.set(_layout._rowOfPosition[position]);
+    }
+
+    public void free(int position) {
+        _taken.clear(position);
+        _staleRows.set(_layout._rowOfPosition[position]);
+    }
+
+    public SeatDTO getSeat(int position) {
+        return _layout._seats[position];
+    }
+
+    public static int positionOf(SeatDTO seat) {
+        int index = TheatreLayout.getSeatIndex(seat);
+        if (index < 0 || index >= POSITIONS.length || POSITIONS[index] < 0) {
+            throw new IllegalArgumentException("Seat " + seat + " is not in any price band");
+        }
+        return POSITIONS[index];
+    }
+
+    public static PriceBand priceBandOf(SeatRow row) {
+        PriceBand band = TheatreLayout.getPriceBandForRow(row);
+        if (band == null) {
+            throw new IllegalArgumentException("Row " + row + " is not in any price band");
+        }
+        return band;
+    }
+
+
+    // Private methods
+
+
+    private int scanLongestRun(int row) {
+        int start = _layout._rowStarts[row];
+        int end = start + _layout._rowLengths[row];
+
+        int longest = 0;
+        int run = 0;
+        for (int position = start; position < end; position++) { // At most one row's worth of seats
+            run = _taken.get(position) ? 0 : run + 1;
+            longest = Math.max(longest, run);
+        }
+        return longest;
+    }
+
+
+    /**
+     * Static seat layout of a price band, built over the canonical seats of the TheatreLayout catalogue.
+     */
+    private static class Layout {
+
+        private final SeatRow[] _rows;
+        private final int[] _rowStarts;
+        private final int[] _rowLengths;
+        private final int[] _rowOfPosition;
+        private final SeatDTO[] _seats;
+
+        private Layout(PriceBand band) {
+            List<SeatDTO> seats = TheatreLayout.getSeatsForPriceBand(band); // Front-to-back, left-to-right order
+            _seats = seats.toArray(new SeatDTO[seats.size()]);
+
+            SortedSet<SeatRow> rows = new TreeSet<>(TheatreLayout.getRowsForPriceBand(band));
+            _rows = rows.toArray(new SeatRow[rows.size()]);
+            _rowStarts = new int[_rows.length];
+            _rowLengths = new int[_rows.length];
+            _rowOfPosition = new int[_seats.length];
+
+            int start = 0;
+            for (int i = 0; i < _rows.length; i++) {
+                _rowStarts[i] = start;
+                _rowLengths[i] = TheatreLayout.getNumberOfSeatsForRow(_rows[i]);
+                start += _rowLengths[i];
+                Arrays.fill(_rowOfPosition, _rowStarts[i], start, i);
+            }
+        }
+    }
+}
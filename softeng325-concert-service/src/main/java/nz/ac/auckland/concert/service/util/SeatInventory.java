@@ -0,0 +1,217 @@
+package nz.ac.auckland.concert.service.util;
+
+import nz.ac.auckland.concert.common.dto.SeatDTO;
+import nz.ac.auckland.concert.common.types.PriceBand;
+
+import java.time.LocalDateTime;
+import java.util.*;
+
+/**
+ * In-memory seat inventory for a single performance (concert id and date). For every price band the inventory
+ * keeps a SeatBand, a compact bitset over the seats in that band, where a set bit means the seat is either booked
+ * or held by a reservation that has not yet expired. Holds carry their expiry time so that lapsed reservations
+ * give their seats back without any database access. Holds are ordered by expiry, so releasing the lapsed ones only
+ * visits those, however many holds are still active.
+ *
+ * All public methods are synchronized on the inventory, so a claim is an atomic check-and-take of seats.
+ */
+public class SeatInventory {
+
+    private final PerformanceKey _key;
+
+    private final Map<PriceBand, SeatBand> _bands; // Booked OR actively held seats
+    private final Map<PriceBand, BitSet> _booked; // Booked seats only
+
+    private final NavigableSet<Hold> _holds; // All holds that have not been booked or released, soonest expiry first
+    private final Map<Long, Hold> _holdsByReservation; // Holds that have been confirmed against a reservation id
+
+    private long _nextHoldId; // Orders holds with the same expiry
+
+    public SeatInventory(PerformanceKey key) {
+        _key = key;
+
+        _bands = new EnumMap<>(PriceBand.class);
+        _booked = new EnumMap<>(PriceBand.class);
+        for (PriceBand band : PriceBand.values()) {
+            _bands.put(band, new SeatBand(band));
+            _booked.put(band, new BitSet(_bands.get(band).size()));
+        }
+
+        _holds = new TreeSet<>(Comparator.comparing((Hold hold) -> hold._expiry).thenComparingLong(hold -> hold._id));
+        _holdsByReservation = new HashMap<>();
+    }
+
+    public PerformanceKey getKey() {
+        return _key;
+    }
+
+    /**
+     * Atomically finds and takes a number of seats in a price band. The returned hold is provisional until it is
+     * either confirmed with the id of the persisted reservation or released.
+     * @param numberOfSeats
+     * @param band
+     * @param expiry
+     * @param strategy chooses which of the free seats are taken.
+     * @return The hold over the taken seats, or null when not enough seats are available.
+     */
+    public synchronized Hold claim(int numberOfSeats, PriceBand band, LocalDateTime expiry, SeatAllocationStrategy strategy) {
+        releaseExpired(LocalDateTime.now());
+
+        SeatBand seatBand = _bands.get(band);
+        int[] positions = strategy.allocate(numberOfSeats, seatBand);
+        if (positions == null) { // Not enough seats left in this band
+            return null;
+        }
+
+        for (int position : positions) {
+            seatBand.take(position);
+        }
+
+        Hold hold = new Hold(_nextHoldId++, seatBand, positions, expiry);
+        _holds.add(hold);
+        return hold;
+    }
+
+    /**
+     * Associates a provisional hold with the id of the reservation it was persisted as.
+     */
+    public synchronized void confirm(Hold hold, long reservationId) {
+        if (_holds.contains(hold)) {
+            hold._reservationId = reservationId;
+            _holdsByReservation.put(reservationId, hold);
+        }
+    }
+
+    /**
+     * Gives the seats of a hold back to the inventory, e.g. when persisting the reservation failed.
+     */
+    public synchronized void release(Hold hold) {
+        if (_holds.remove(hold)) {
+            free(hold);
+        }
+    }
+
+    /**
+     * Converts the hold of a reservation into booked seats. Fails when the hold is unknown or has expired, in
+     * which case the seats may already have been given to another reservation.
+     * @param reservationId
+     * @return true if the seats are now booked.
+     */
+    public synchronized boolean book(long reservationId) {
+        releaseExpired(LocalDateTime.now());
+
+        Hold hold = _holdsByReservation.remove(reservationId);
+        if (hold == null) {
+            return false;
+        }
+        _holds.remove(hold);
+
+        BitSet booked = _booked.get(hold._band.getPriceBand());
+        for (int position : hold._positions) {
+            booked.set(position);
+        }
+        return true;
+    }
+
+    /**
+     * Records seats that are already booked in the database. Used when loading the inventory.
+     */
+    public synchronized void addBooked(Collection<SeatDTO> seats) {
+        for (SeatDTO seat : seats) {
+            PriceBand band = SeatBand.priceBandOf(seat.getRow());
+            int position = SeatBand.positionOf(seat);
+            _bands.get(band).take(position);
+            _booked.get(band).set(position);
+        }
+    }
+
+    /**
+     * Records an active reservation that already exists in the database. Used when loading the inventory.
+     */
+    public synchronized void addHeld(long reservationId, PriceBand band, Collection<SeatDTO> seats, LocalDateTime expiry) {
+        int[] positions = seats.stream().mapToInt(SeatBand::positionOf).toArray();
+
+        SeatBand seatBand = _bands.get(band);
+        for (int position : positions) {
+            seatBand.take(position);
+        }
+
+        Hold hold = new Hold(_nextHoldId++, seatBand, positions, expiry);
+        hold._reservationId = reservationId;
+        _holds.add(hold);
+        _holdsByReservation.put(reservationId, hold);
+    }
+
+    /**
+     * Releases all holds whose expiry is not after the given time. Only the lapsed holds are visited.
+     * @param now
+     * @return the number of holds released.
+     */
+    public synchronized int releaseExpired(LocalDateTime now) {
+        int released = 0;
+
+        while (!_holds.isEmpty() && !now.isBefore(_holds.first()._expiry)) {
+            Hold hold = _holds.pollFirst();
+            if (hold._reservationId != null) {
+                _holdsByReservation.remove(hold._reservationId);
+            }
+            free(hold);
+            released++;
+        }
+        return released;
+    }
+
+    public synchronized int getAvailableSeatCount(PriceBand band) {
+        releaseExpired(LocalDateTime.now());
+        return _bands.get(band).getAvailableCount();
+    }
+
+
+    // Private methods
+
+
+    private void free(Hold hold) {
+        BitSet booked = _booked.get(hold._band.getPriceBand());
+        for (int position : hold._positions) {
+            if (!booked.get(position)) {
+                hold._band.free(position);
+            }
+        }
+    }
+
+
+    /**
+     * A set of seats taken by one reservation, released automatically once its expiry has passed.
+     */
+    public static class Hold {
+
+        private final long _id;
+        private final SeatBand _band;
+        private final int[] _positions;
+        private final LocalDateTime _expiry;
+        private Long _reservationId;
+
+        private Hold(long id, SeatBand band, int[] positions, LocalDateTime expiry) {
+            _id = id;
+            _band = band;
+            _positions = positions;
+            _expiry = expiry;
+        }
+
+        public PriceBand getPriceBand() {
+            return _band.getPriceBand();
+        }
+
+        public LocalDateTime getExpiry() {
+            return _expiry;
+        }
+
+        public Set<SeatDTO> getSeats() {
+            Set<SeatDTO> seats = new HashSet<>();
+            for (int position : _positions) {
+                seats.add(_band.getSeat(position));
+            }
+            return seats;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package nz.ac.auckland.concert.service.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces concurrent executions of the same work. The first caller for a key runs the work, and callers that
+ * arrive for the same key while it is running wait for it and share its result or its failure instead of running
+ * the work again. Once the work has finished the next caller for the key runs it afresh.
+ */
+public class SingleFlight<K, V> {
+
+    /**
+     * Work that is run on behalf of every caller waiting for a key.
+     */
+    public interface Work<V> {
+        V run() throws IOException;
+    }
+
+    private final ConcurrentMap<K, CompletableFuture<V>> _inFlight = new ConcurrentHashMap<>();
+
+    private final AtomicLong _executions = new AtomicLong();
+    private final AtomicLong _coalesced = new AtomicLong();
+
+    /**
+     * Runs work for a key, or waits for the run that is already in flight for it.
+     * @return the result of the run.
+     * @throws IOException thrown by the run, to every caller that waited for it.
+     */
+    public V execute(K key, Work<V> work) throws IOException {
+        CompletableFuture<V> flight = new CompletableFuture<>();
+        CompletableFuture<V> leader = _inFlight.putIfAbsent(key, flight);
+        if (leader != null) {
+            _coalesced.incrementAndGet();
+            return await(leader);
+        }
+
+        _executions.incrementAndGet();
+        try {
+            V result = work.run();
+            flight.complete(result);
+            return result;
+        } catch (IOException | RuntimeException | Error e) {
+            flight.completeExceptionally(e);
+            throw e;
+        } finally {
+            _inFlight.remove(key, flight);
+        }
+    }
+
+    /**
+     * Returns the number of times work was actually run.
+     */
+    public long getExecutionCount() {
+        return _executions.get();
+    }
+
+    /**
+     * Returns the number of calls that shared a run already in flight instead of running the work themselves.
+     */
+    public long getCoalescedCount() {
+        return _coalesced.get();
+    }
+
+
+    // Private methods
+
+
+    private static <V> V await(CompletableFuture<V> flight) throws IOException {
+        try {
+            return flight.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) { // Rethrown as is, so callers can tell e.g. a missing file apart
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw (Error) cause;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for work in flight");
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package nz.ac.auckland.concert.service.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Date;
+
+/**
+ * Open image file together with the validators it is served with.
+ */
+public class StoredImage implements Closeable {
+
+    private final FileChannel _channel;
+    private final long _length;
+    private final String _tag;
+    private final Date _lastModified;
+
+    public StoredImage(FileChannel channel, long length, String tag, Date lastModified) {
+        _channel = channel;
+        _length = length;
+        _tag = tag;
+        _lastModified = lastModified;
+    }
+
+    /**
+     * Writes the whole image to a channel. The file channel moves the bytes itself, through sendfile when the target
+     * is a socket or file and through a direct buffer otherwise, so they are never copied into a heap array.
+     */
+    public void transferTo(WritableByteChannel target) throws IOException {
+        transferTo(target, 0, _length);
+    }
+
+    /**
+     * Writes part of the image to a channel, reading it from its position in the file rather than from the start.
+     * @param target
+     * @param position offset of the first byte to write.
+     * @param count number of bytes to write.
+     */
+    public void transferTo(WritableByteChannel target, long position, long count) throws IOException {
+        long end = position + count;
+        while (position < end) { // transferTo() may move fewer bytes than asked for
+            long transferred = _channel.transferTo(position, end - position, target);
+            if (transferred <= 0) {
+                throw new IOException("Image file ended at " + position + " of " + _length + " bytes");
+            }
+            position += transferred;
+        }
+    }
+
+    /**
+     * Returns a stream that reads the image from its start. Any stream returned earlier must no longer be read.
+     */
+    public InputStream newInputStream() throws IOException {
+        return Channels.newInputStream(_channel.position(0));
+    }
+
+    public long getLength() {
+        return _length;
+    }
+
+    public String getTag() {
+        return _tag;
+    }
+
+    public Date getLastModified() {
+        return _lastModified;
+    }
+
+    @Override
+    public void close() throws IOException {
+        _channel.close();
+    }
+}
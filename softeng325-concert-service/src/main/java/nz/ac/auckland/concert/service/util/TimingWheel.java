@@ -0,0 +1,106 @@
+package nz.ac.auckland.concert.service.util;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Hashed timing wheel. Items are scheduled against a deadline in epoch milliseconds and hashed into one of a fixed
+ * number of buckets by the tick their deadline falls in, so scheduling is constant time and advancing the wheel
+ * only visits the buckets of the ticks that have passed. Deadlines further away than one turn of the wheel stay in
+ * their bucket until the wheel comes round to them.
+ *
+ * All public methods are synchronized on the wheel.
+ */
+public class TimingWheel<T> {
+
+    private final long _tickMillis;
+    private final List<List<Entry<T>>> _buckets;
+
+    private long _currentTick; // Last tick that has been advanced over
+    private int _size;
+
+    public TimingWheel(long tickMillis, int wheelSize, long startMillis) {
+        if (tickMillis <= 0 || wheelSize <= 0) {
+            throw new IllegalArgumentException("Tick duration and wheel size must be positive");
+        }
+        _tickMillis = tickMillis;
+        _buckets = new ArrayList<>(wheelSize);
+        for (int i = 0; i < wheelSize; i++) {
+            _buckets.add(new ArrayList<>());
+        }
+        _currentTick = startMillis / tickMillis;
+    }
+
+    /**
+     * Schedules an item to fall due once the wheel is advanced past its deadline. A deadline that has already passed
+     * falls due on the next advance.
+     */
+    public synchronized void schedule(T item, long deadlineMillis) {
+        long deadlineTick = Math.max(ceilDiv(deadlineMillis, _tickMillis), _currentTick + 1);
+        _buckets.get(bucketOf(deadlineTick)).add(new Entry<>(item, deadlineTick));
+        _size++;
+    }
+
+    /**
+     * Advances the wheel to the given time.
+     * @param nowMillis
+     * @return the items whose deadline is at or before the given time, in no particular order.
+     */
+    public synchronized List<T> advance(long nowMillis) {
+        List<T> due = new ArrayList<>();
+
+        long nowTick = nowMillis / _tickMillis;
+        if (nowTick <= _currentTick) {
+            return due;
+        }
+
+        // Visit each passed tick's bucket once, a jump of more than a full turn visits every bucket
+        long ticks = Math.min(nowTick - _currentTick, _buckets.size());
+        for (long tick = nowTick - ticks + 1; tick <= nowTick; tick++) {
+            Iterator<Entry<T>> iterator = _buckets.get(bucketOf(tick)).iterator();
+            while (iterator.hasNext()) {
+                Entry<T> entry = iterator.next();
+                if (entry._deadlineTick <= nowTick) {
+                    iterator.remove();
+                    due.add(entry._item);
+                }
+            }
+        }
+
+        _currentTick = nowTick;
+        _size -= due.size();
+        return due;
+    }
+
+    /**
+     * Returns the number of items that have not yet fallen due.
+     */
+    public synchronized int size() {
+        return _size;
+    }
+
+
+    // Private methods
+
+
+    private int bucketOf(long tick) {
+        return (int) (tick % _buckets.size());
+    }
+
+    private static long ceilDiv(long dividend, long divisor) {
+        return -Math.floorDiv(-dividend, divisor);
+    }
+
+
+    private static class Entry<T> {
+
+        private final T _item;
+        private final long _deadlineTick;
+
+        private Entry(T item, long deadlineTick) {
+            _item = item;
+            _deadlineTick = deadlineTick;
+        }
+    }
+}
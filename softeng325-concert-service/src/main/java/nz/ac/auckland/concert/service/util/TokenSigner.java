@@ -0,0 +1,85 @@
+package nz.ac.auckland.concert.service.util;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Base64;
+
+/**
+ * Issues and verifies self-contained authorization tokens of the form username.expiry.signature, where the username
+ * and signature are base64url encoded, the expiry is in epoch milliseconds and the signature is an HMAC-SHA256 of
+ * the first two parts. Any holder of the same key can verify a token without shared state.
+ */
+public class TokenSigner {
+
+    private static final String ALGORITHM = "HmacSHA256";
+
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    private final SecretKeySpec _key;
+
+    public TokenSigner(byte[] key) {
+        if (key == null || key.length == 0) {
+            throw new IllegalArgumentException("Signing key must not be empty");
+        }
+        _key = new SecretKeySpec(key.clone(), ALGORITHM);
+    }
+
+    /**
+     * Issues a token for a user that is valid until the given expiry.
+     */
+    public String sign(String username, LocalDateTime expiry) {
+        long expiryMillis = expiry.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        String payload = ENCODER.encodeToString(username.getBytes(StandardCharsets.UTF_8)) + "." + expiryMillis;
+        return payload + "." + ENCODER.encodeToString(mac(payload));
+    }
+
+    /**
+     * Verifies a token's signature.
+     * @param token
+     * @return the user the token was issued to, or null if the token is malformed or its signature doesn't match.
+     * The caller checks the expiry.
+     */
+    public AuthenticatedUser verify(String token) {
+        int usernameEnd = token.indexOf('.');
+        int expiryEnd = token.indexOf('.', usernameEnd + 1);
+        if (usernameEnd < 0 || expiryEnd < 0) {
+            return null;
+        }
+
+        try {
+            String payload = token.substring(0, expiryEnd);
+            byte[] signature = DECODER.decode(token.substring(expiryEnd + 1));
+            if (!MessageDigest.isEqual(signature, mac(payload))) { // Constant time comparison
+                return null;
+            }
+
+            String username = new String(DECODER.decode(token.substring(0, usernameEnd)), StandardCharsets.UTF_8);
+            long expiryMillis = Long.parseLong(token.substring(usernameEnd + 1, expiryEnd));
+            LocalDateTime expiry = LocalDateTime.ofInstant(Instant.ofEpochMilli(expiryMillis), ZoneId.systemDefault());
+            return new AuthenticatedUser(username, token, expiry);
+        } catch (IllegalArgumentException e) { // Bad base64 or expiry
+            return null;
+        }
+    }
+
+
+    // Private methods
+
+
+    private byte[] mac(String payload) {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(_key);
+            return mac.doFinal(payload.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) { // HmacSHA256 is required of every Java platform
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package nz.ac.auckland.concert.service.util;
+
+import org.hibernate.StaleStateException;
+import org.hibernate.exception.ConstraintViolationException;
+
+import javax.persistence.OptimisticLockException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Retry policy for transactions that fail because of contention, i.e. an optimistic version check or a seat claim
+ * that another transaction got to first. A failed attempt is retried up to a bounded number of attempts, sleeping
+ * for an exponentially growing, fully jittered delay in between so that colliding requests spread out rather than
+ * colliding again. Any other failure is passed straight through.
+ *
+ * Each attempt must run and finish its own transaction, and must leave no transaction active when it fails.
+ */
+public class TransactionRetry {
+
+    private static final String DUPLICATE_KEY_STATE = "23505"; // SQL state of a unique or primary key violation
+    private static final String CLAIMS_TABLE = "SEAT_CLAIMS";
+
+    private final int _maxAttempts;
+    private final long _baseDelayMillis;
+    private final long _maxDelayMillis;
+
+    private final AtomicLong _attempts = new AtomicLong();
+    private final AtomicLong _retries = new AtomicLong();
+    private final AtomicLong _failures = new AtomicLong();
+
+    public TransactionRetry(int maxAttempts, long baseDelayMillis, long maxDelayMillis) {
+        if (maxAttempts <= 0) {
+            throw new IllegalArgumentException("Number of attempts must be positive");
+        }
+        _maxAttempts = maxAttempts;
+        _baseDelayMillis = baseDelayMillis;
+        _maxDelayMillis = maxDelayMillis;
+    }
+
+    /**
+     * Runs an attempt until it succeeds, fails with an error that is not a conflict, or runs out of attempts.
+     * @param attempt
+     * @param beforeRetry run after a conflict and before the next attempt, e.g. to re-read state that was stale.
+     * @return the result of the successful attempt.
+     */
+    public <T> T execute(Supplier<T> attempt, Runnable beforeRetry) {
+        for (int attemptNumber = 1; ; attemptNumber++) {
+            _attempts.incrementAndGet();
+            try {
+                return attempt.get();
+            } catch (RuntimeException e) {
+                if (!isConflict(e)) {
+                    throw e;
+                }
+                if (attemptNumber >= _maxAttempts) { // Give up with the last conflict
+                    _failures.incrementAndGet();
+                    throw e;
+                }
+                _retries.incrementAndGet();
+                beforeRetry.run();
+                backOff(attemptNumber);
+            }
+        }
+    }
+
+    public <T> T execute(Supplier<T> attempt) {
+        return execute(attempt, () -> {});
+    }
+
+    /**
+     * Returns the number of attempts made, including first attempts.
+     */
+    public long getAttemptCount() {
+        return _attempts.get();
+    }
+
+    /**
+     * Returns the number of attempts that were retried after a conflict.
+     */
+    public long getRetryCount() {
+        return _retries.get();
+    }
+
+    /**
+     * Returns the number of executions that still conflicted on their final attempt.
+     */
+    public long getFailureCount() {
+        return _failures.get();
+    }
+
+    /**
+     * Returns true if an error, or any of its causes, is a conflict with a concurrent transaction. Other constraint
+     * violations, e.g. a missing foreign key, fail the same way every time and are not conflicts.
+     */
+    public static boolean isConflict(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof OptimisticLockException || cause instanceof StaleStateException) {
+                return true;
+            }
+        }
+        return isDuplicateClaim(e);
+    }
+
+    /**
+     * Returns true if an error, or any of its causes, is a violated SEAT_CLAIMS primary key, i.e. a seat that is
+     * already claimed.
+     */
+    public static boolean isDuplicateClaim(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ConstraintViolationException) {
+                ConstraintViolationException violation = (ConstraintViolationException) cause;
+                String message = violation.getSQLException().getMessage(); // Names the table, unlike the constraint
+                return DUPLICATE_KEY_STATE.equals(violation.getSQLState()) &&
+                        message != null && message.toUpperCase().contains(CLAIMS_TABLE);
+            }
+        }
+        return false;
+    }
+
+    // Private methods
+
+
+    private void backOff(int attemptNumber) {
+        long ceiling = Math.min(_maxDelayMillis, _baseDelayMillis << Math.min(attemptNumber - 1, 30));
+        long delay = ThreadLocalRandom.current().nextLong(ceiling + 1); // Full jitter
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
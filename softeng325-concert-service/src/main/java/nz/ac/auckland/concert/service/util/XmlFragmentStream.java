@@ -0,0 +1,94 @@
+package nz.ac.auckland.concert.service.util;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.StreamingOutput;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.BiFunction;
+import java.util.function.ToLongFunction;
+
+/**
+ * Response body that writes an arbitrarily long sequence of JAXB objects as children of a single root element. Items
+ * are read in id order, one batch at a time, and each is marshalled as an XML fragment straight onto the response
+ * stream, so only one batch is ever held in memory.
+ */
+public class XmlFragmentStream<T> implements StreamingOutput {
+
+    private static final XMLOutputFactory OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+    private static final ConcurrentMap<Class<?>, JAXBContext> CONTEXTS = new ConcurrentHashMap<>(); // Costly to create
+
+    private final Class<T> _type;
+    private final String _rootElement;
+    private final int _batchSize;
+    private final BiFunction<Long, Integer, List<T>> _batchLoader;
+    private final ToLongFunction<T> _idOf;
+
+    /**
+     * @param type JAXB annotated class of the items.
+     * @param rootElement name of the element enclosing the items.
+     * @param batchSize
+     * @param batchLoader returns up to batchSize items with an id greater than the given id, in id order.
+     * @param idOf
+     */
+    public XmlFragmentStream(Class<T> type, String rootElement, int batchSize,
+                             BiFunction<Long, Integer, List<T>> batchLoader, ToLongFunction<T> idOf) {
+        _type = type;
+        _rootElement = rootElement;
+        _batchSize = batchSize;
+        _batchLoader = batchLoader;
+        _idOf = idOf;
+    }
+
+    @Override
+    public void write(OutputStream output) throws IOException, WebApplicationException {
+        try {
+            Marshaller marshaller = context(_type).createMarshaller();
+            marshaller.setProperty(Marshaller.JAXB_FRAGMENT, true); // No XML declaration per item
+
+            XMLStreamWriter writer = OUTPUT_FACTORY.createXMLStreamWriter(output, "UTF-8");
+            writer.writeStartDocument("UTF-8", "1.0");
+            writer.writeStartElement(_rootElement);
+
+            long afterId = PageCursor.FIRST;
+            List<T> batch;
+            do {
+                batch = _batchLoader.apply(afterId, _batchSize);
+                for (T item : batch) {
+                    marshaller.marshal(item, writer);
+                }
+                if (!batch.isEmpty()) {
+                    afterId = _idOf.applyAsLong(batch.get(batch.size() - 1));
+                }
+                writer.flush(); // Let the client start on this batch while the next is read
+            } while (batch.size() == _batchSize);
+
+            writer.writeEndElement();
+            writer.writeEndDocument();
+            writer.close(); // Leaves the underlying stream open
+        } catch (JAXBException | XMLStreamException e) {
+            throw new IOException("Failed to stream " + _rootElement, e);
+        }
+    }
+
+
+    // Private methods
+
+
+    private static JAXBContext context(Class<?> type) throws JAXBException {
+        JAXBContext context = CONTEXTS.get(type);
+        if (context == null) {
+            context = JAXBContext.newInstance(type);
+            CONTEXTS.putIfAbsent(type, context);
+        }
+        return context;
+    }
+}